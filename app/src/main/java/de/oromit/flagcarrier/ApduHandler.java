@@ -0,0 +1,242 @@
+package de.oromit.flagcarrier;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Card side of the FlagCarrier AID without any Android dependencies: SELECT, UPDATE BINARY
+ * with the reader's challenge, READ BINARY of the signed NDEF message and GET DATA for the
+ * largest extended READ BINARY answered. HCEService feeds it
+ * from the NFC stack, the unit tests through LoopbackTransport.
+ * One instance per emulated card, not thread safe.
+ */
+class ApduHandler {
+    interface Logger {
+        void debug(String msg);
+
+        void error(String msg);
+    }
+
+    static final byte[] STATUS_SUCCESS = new byte[] { (byte)0x90, (byte)0x00 };
+    static final byte[] STATUS_FAILED = new byte[] { (byte)0x6F, (byte)0x00 };
+    static final byte[] CLA_NOT_SUPPORTED  = new byte[] { (byte)0x6E, (byte)0x00 };
+    static final byte[] INS_NOT_SUPPORTED  = new byte[] { (byte)0x6D, (byte)0x00 };
+    static final byte[] FILE_NOT_FOUND  = new byte[] { (byte)0x6A, (byte)0x82 };
+    static final byte[] WRONG_PARAMETERS  = new byte[] { (byte)0x6B, (byte)0x00 };
+    static final byte[] DATA_NOT_FOUND  = new byte[] { (byte)0x6A, (byte)0x88 };
+
+    private static final byte DEFAULT_CLA  = (byte)0x00;
+
+    static final byte SELECT_INS = (byte)0xA4;
+    static final byte UPDATEBINARY_INS = (byte)0xD6;
+    static final byte READBINARY_INS = (byte)0xB0;
+    static final byte GETDATA_INS = (byte)0xCA;
+
+    // Proprietary data object holding the largest extended READ BINARY, two bytes.
+    static final int MAX_READ_TAG = 0xDF01;
+
+    static final int MAX_SHORT_READ = 253;
+    static final int MAX_EXTENDED_READ = 1024;
+
+    private static final byte[] MAX_READ_RESPONSE = new byte[] {
+            (byte)(MAX_EXTENDED_READ >> 8), (byte)MAX_EXTENDED_READ,
+            STATUS_SUCCESS[0], STATUS_SUCCESS[1]
+    };
+
+    static final byte[] FLAGCARRIER_AID
+            = new byte[] { (byte)0xf0, (byte)0x5a, (byte)0x25, (byte)0x58,
+                           (byte)0x83, (byte)0x6e, (byte)0x09, (byte)0x66,
+                           (byte)0xae, (byte)0xd5, (byte)0x27, (byte)0xce };
+
+    private final AtomicReference<PublishedData> published;
+    private final ApduStats stats;
+    private final Logger logger;
+    private final boolean debug;
+
+    private CryptoManager.PreparedSigner signer = null;
+
+    private PreparedMessage servedMessage = null;
+    private byte[] ndefData = null;
+    private int highestReadEnd = 0;
+    private long challengeTime = 0;
+
+    /**
+     * stats and logger may be null. Debug messages are only built if debug is set.
+     */
+    public ApduHandler(AtomicReference<PublishedData> published, ApduStats stats, Logger logger, boolean debug) {
+        this.published = published;
+        this.stats = stats;
+        this.logger = logger;
+        this.debug = debug && logger != null;
+    }
+
+    public void setSigner(CryptoManager.PreparedSigner signer) {
+        this.signer = signer;
+    }
+
+    public byte[] process(byte[] commandApdu) {
+        if (stats == null)
+            return dispatch(commandApdu);
+
+        long start = System.nanoTime();
+        byte[] res = dispatch(commandApdu);
+        stats.record(commandApdu != null && commandApdu.length > 1 ? commandApdu[1] : 0, System.nanoTime() - start);
+        return res;
+    }
+
+    private byte[] dispatch(byte[] commandApdu) {
+        if (commandApdu == null || commandApdu.length < 5)
+            return STATUS_FAILED;
+
+        if (commandApdu[0] != DEFAULT_CLA)
+            return CLA_NOT_SUPPORTED;
+
+        switch (commandApdu[1])
+        {
+            case SELECT_INS:
+                return processSelect(commandApdu);
+            case UPDATEBINARY_INS:
+                return processUpdate(commandApdu);
+            case READBINARY_INS:
+                return processRead(commandApdu);
+            case GETDATA_INS:
+                return processGetData(commandApdu);
+            default:
+                return INS_NOT_SUPPORTED;
+        }
+    }
+
+    private byte[] processSelect(byte[] commandApdu) {
+        if (commandApdu[2] != 0x04 || commandApdu[3] != 0x00)
+            return STATUS_FAILED;
+
+        if (commandApdu[4] != FLAGCARRIER_AID.length)
+            return FILE_NOT_FOUND;
+
+        // The AID and at most an Le byte.
+        if (commandApdu.length < 5 + FLAGCARRIER_AID.length || commandApdu.length > 6 + FLAGCARRIER_AID.length)
+            return STATUS_FAILED;
+
+        for (int i = 0; i < FLAGCARRIER_AID.length; ++i)
+            if (commandApdu[5 + i] != FLAGCARRIER_AID[i])
+                return FILE_NOT_FOUND;
+
+        // No response data whatever Le says, readers that want extended reads ask with GET DATA.
+        return STATUS_SUCCESS;
+    }
+
+    private byte[] processGetData(byte[] commandApdu) {
+        int tag = ((commandApdu[2] & 0xFF) << 8) | (commandApdu[3] & 0xFF);
+        if (tag != MAX_READ_TAG)
+            return DATA_NOT_FOUND;
+
+        return MAX_READ_RESPONSE;
+    }
+
+    private byte[] processUpdate(byte[] commandApdu) {
+        int address = ((commandApdu[2] & 0xFF) << 8) | (commandApdu[3] & 0xFF);
+        if (address < 0 || address >= 1024)
+            return WRONG_PARAMETERS;
+
+        if (address != 0)
+            return WRONG_PARAMETERS;
+
+        int length = commandApdu[4] & 0xFF;
+        if (commandApdu.length < length + 5)
+            return STATUS_FAILED;
+
+        PreparedMessage msg = published.get().current();
+        if (msg == null)
+            return FILE_NOT_FOUND;
+
+        if (debug)
+            challengeTime = System.nanoTime();
+
+        try {
+            ndefData = msg.sign(signer, commandApdu, 5, length);
+        } catch(TagManager.TagManagerException e) {
+            if (logger != null)
+                logger.error(e.getMessage());
+            return STATUS_FAILED;
+        }
+
+        servedMessage = msg;
+        highestReadEnd = 0;
+
+        if (debug)
+            logger.debug("Generated data of " + ndefData.length + " bytes");
+
+        return STATUS_SUCCESS;
+    }
+
+    private byte[] processRead(byte[] commandApdu) {
+        int offset = ((commandApdu[2] & 0xFF) << 8) | (commandApdu[3] & 0xFF);
+        if (offset < 0 || offset >= 0x8000)
+            return WRONG_PARAMETERS;
+
+        // Short Le caps at 253 bytes, extended Le is 00 followed by two bytes, 0000 meaning 65536.
+        int length;
+        if (commandApdu.length == 7 && commandApdu[4] == 0) {
+            length = ((commandApdu[5] & 0xFF) << 8) | (commandApdu[6] & 0xFF);
+            if (length <= 0 || length > MAX_EXTENDED_READ)
+                length = MAX_EXTENDED_READ;
+        } else {
+            length = commandApdu[4] & 0xFF;
+            if (length <= 0 || length > MAX_SHORT_READ)
+                length = MAX_SHORT_READ;
+        }
+
+        if (debug)
+            logger.debug("Got read request at " + offset + " for " + length + " bytes.");
+
+        if (ndefData == null)
+            return FILE_NOT_FOUND;
+
+        if (offset >= ndefData.length)
+            return STATUS_SUCCESS;
+
+        int end = offset + length;
+        if (end > ndefData.length)
+            end = ndefData.length;
+
+        if (end > highestReadEnd)
+            highestReadEnd = end;
+
+        // The only allocation per read, the framework needs an array of exactly this size.
+        byte[] res = new byte[end - offset + 2];
+        System.arraycopy(ndefData, offset, res, 0, end - offset);
+        res[res.length - 2] = STATUS_SUCCESS[0];
+        res[res.length - 1] = STATUS_SUCCESS[1];
+
+        if (debug && challengeTime != 0) {
+            logger.debug("Challenge to first read: " + (System.nanoTime() - challengeTime) / 1000 + " us");
+            challengeTime = 0;
+        }
+
+        return res;
+    }
+
+    /**
+     * Ends the session. Returns true if it read one-time data completely and the queue moved on.
+     */
+    public boolean deactivate() {
+        boolean handedOff = ndefData != null && highestReadEnd >= ndefData.length && consumeOneTimeData(servedMessage);
+
+        servedMessage = null;
+        ndefData = null;
+
+        return handedOff;
+    }
+
+    // Advances the one-time queue only if its head is still the one that was served, so
+    // publishing during a session never drops the new data.
+    private boolean consumeOneTimeData(PreparedMessage served) {
+        PublishedData cur;
+        do {
+            cur = published.get();
+            if (served == null || cur.nextOneTimeData() != served)
+                return false;
+        } while (!published.compareAndSet(cur, cur.withoutNextOneTimeData()));
+
+        return true;
+    }
+}
@@ -0,0 +1,83 @@
+package de.oromit.flagcarrier;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Handling time of APDUs per instruction. The last WINDOW latencies of SELECT, UPDATE BINARY
+ * and READ BINARY are kept for percentiles, recording itself allocates nothing.
+ */
+class ApduStats {
+    public static final int SELECT = 0;
+    public static final int UPDATE = 1;
+    public static final int READ = 2;
+    public static final int OTHER = 3;
+
+    private static final String[] NAMES = new String[] { "SELECT", "UPDATE", "READ", "OTHER" };
+    private static final int WINDOW = 256;
+
+    private final long[][] samples = new long[NAMES.length][WINDOW];
+    private final long[] counts = new long[NAMES.length];
+    private final long[] totals = new long[NAMES.length];
+
+    public static int kindOf(byte ins) {
+        switch (ins) {
+            case ApduHandler.SELECT_INS:
+                return SELECT;
+            case ApduHandler.UPDATEBINARY_INS:
+                return UPDATE;
+            case ApduHandler.READBINARY_INS:
+                return READ;
+            default:
+                return OTHER;
+        }
+    }
+
+    public synchronized void record(byte ins, long nanos) {
+        int kind = kindOf(ins);
+        samples[kind][(int)(counts[kind] % WINDOW)] = nanos;
+        ++counts[kind];
+        totals[kind] += nanos;
+    }
+
+    public synchronized long getCount(int kind) {
+        return counts[kind];
+    }
+
+    // Commands per second of handling time, not of wall clock time.
+    public synchronized double getRate(int kind) {
+        return totals[kind] == 0 ? 0 : counts[kind] * 1e9 / totals[kind];
+    }
+
+    /**
+     * Latency in microseconds that the given fraction (0 to 1) of the recent commands stayed within.
+     */
+    public synchronized long getPercentileMicros(int kind, double p) {
+        int n = (int)Math.min(counts[kind], WINDOW);
+        if (n == 0)
+            return 0;
+
+        long[] sorted = Arrays.copyOf(samples[kind], n);
+        Arrays.sort(sorted);
+        int i = (int)Math.ceil(p * n) - 1;
+        return sorted[Math.max(0, Math.min(n - 1, i))] / 1000;
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(counts, 0);
+        Arrays.fill(totals, 0);
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder bldr = new StringBuilder();
+        for (int kind = 0; kind < NAMES.length; ++kind) {
+            if (counts[kind] == 0)
+                continue;
+            bldr.append(String.format(Locale.US, "%s: %d, p50 %d us, p90 %d us, p99 %d us\n",
+                    NAMES[kind], counts[kind],
+                    getPercentileMicros(kind, 0.5), getPercentileMicros(kind, 0.9), getPercentileMicros(kind, 0.99)));
+        }
+        return bldr.toString().trim();
+    }
+}
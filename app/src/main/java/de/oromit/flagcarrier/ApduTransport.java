@@ -0,0 +1,14 @@
+package de.oromit.flagcarrier;
+
+import java.io.IOException;
+
+/**
+ * Sends command APDUs to a card and returns the response including the status word.
+ */
+interface ApduTransport {
+    byte[] transceive(byte[] apdu) throws IOException;
+
+    int getMaxTransceiveLength();
+
+    boolean isExtendedLengthApduSupported();
+}
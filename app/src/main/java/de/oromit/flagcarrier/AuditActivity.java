@@ -0,0 +1,232 @@
+package de.oromit.flagcarrier;
+
+import android.app.PendingIntent;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.nfc.NdefMessage;
+import android.nfc.NfcAdapter;
+import android.nfc.Tag;
+import android.os.Bundle;
+import android.os.Parcelable;
+import android.support.v7.app.AppCompatActivity;
+import android.view.Menu;
+import android.view.MenuInflater;
+import android.view.MenuItem;
+import android.widget.ArrayAdapter;
+import android.widget.ListView;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Audits a crate of tags before an event. Every tapped tag is only dumped, the signatures of
+ * all of them are checked in one batch through BatchVerifier once the crate is through.
+ */
+public class AuditActivity extends AppCompatActivity {
+    private static class Dump {
+        final String uid;
+        final byte[] payload;
+        final byte[] extraSignData;
+
+        Dump(String uid, byte[] payload, byte[] extraSignData) {
+            this.uid = uid;
+            this.payload = payload;
+            this.extraSignData = extraSignData;
+        }
+    }
+
+    private NfcAdapter mAdapter;
+    private PendingIntent mPendingIntent;
+    private IntentFilter[] mTagFilters;
+
+    // By UID, a tag tapped twice is only audited once.
+    private final Map<String, Dump> mDumps = new LinkedHashMap<>();
+    private final BatchVerifier mVerifier = new BatchVerifier();
+    private ArrayAdapter<String> mResultAdapter;
+    private TextView mStatusText;
+    private boolean mVerifying = false;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        setContentView(R.layout.activity_audit);
+        setTitle(R.string.audit_title);
+
+        mStatusText = findViewById(R.id.auditStatusText);
+        mResultAdapter = new ArrayAdapter<>(this, android.R.layout.simple_list_item_1);
+        ListView list = findViewById(R.id.auditResultList);
+        list.setAdapter(mResultAdapter);
+
+        mAdapter = NfcAdapter.getDefaultAdapter(this);
+
+        mPendingIntent = PendingIntent.getActivity(
+                this,
+                0,
+                new Intent(this, getClass())
+                        .addFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP),
+                0);
+        mTagFilters = new IntentFilter[] {
+                new IntentFilter(NfcAdapter.ACTION_NDEF_DISCOVERED),
+                new IntentFilter(NfcAdapter.ACTION_TECH_DISCOVERED)
+        };
+
+        updateStatus();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mVerifier.shutdown();
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        MenuInflater inflater = getMenuInflater();
+        inflater.inflate(R.menu.audit_menu, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch(item.getItemId()) {
+            case R.id.verifyAuditOption:
+                verifyAll();
+                return true;
+            case R.id.clearAuditOption:
+                if(!mVerifying) {
+                    mDumps.clear();
+                    mResultAdapter.clear();
+                    updateStatus();
+                }
+                return true;
+            default:
+                return super.onOptionsItemSelected(item);
+        }
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+
+        if(mAdapter == null) {
+            Toast.makeText(this, "No NFC adapter found", Toast.LENGTH_LONG).show();
+            return;
+        }
+
+        if(!mAdapter.isEnabled()) {
+            Toast.makeText(this, "NFC Adapter is disabled", Toast.LENGTH_LONG).show();
+            return;
+        }
+
+        mAdapter.enableForegroundDispatch(this, mPendingIntent, mTagFilters, null);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        if(mAdapter != null)
+            mAdapter.disableForegroundDispatch(this);
+    }
+
+    @Override
+    protected void onNewIntent(Intent intent) {
+        super.onNewIntent(intent);
+        String a = intent.getAction();
+        if(!NfcAdapter.ACTION_NDEF_DISCOVERED.equals(a) && !NfcAdapter.ACTION_TECH_DISCOVERED.equals(a))
+            return;
+
+        Tag tag = intent.getParcelableExtra(NfcAdapter.EXTRA_TAG);
+        Parcelable[] rawMsgs = intent.getParcelableArrayExtra(NfcAdapter.EXTRA_NDEF_MESSAGES);
+        if(tag == null || rawMsgs == null || rawMsgs.length == 0) {
+            Toast.makeText(this, "No Ndef message on tag", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        if(mVerifying)
+            return;
+
+        try {
+            byte[] payload = TagManager.findPayload((NdefMessage)rawMsgs[0]);
+            String uid = hex(tag.getId());
+            mDumps.put(uid, new Dump(uid, payload, TagManager.extraSignDataFromTag(tag)));
+            updateStatus();
+        } catch(TagManager.TagManagerException e) {
+            Toast.makeText(this, e.getMessage(), Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    private void verifyAll() {
+        if(mVerifying || mDumps.isEmpty())
+            return;
+        mVerifying = true;
+        mStatusText.setText(R.string.audit_verifying);
+
+        List<Dump> dumps = new ArrayList<>(mDumps.values());
+        List<byte[]> payloads = new ArrayList<>(dumps.size());
+        List<byte[]> extraSignData = new ArrayList<>(dumps.size());
+        for(Dump d: dumps) {
+            payloads.add(d.payload);
+            extraSignData.add(d.extraSignData);
+        }
+
+        new Thread(() -> {
+            TagManager tagManager = new TagManager();
+            tagManager.loadKeysFromPrefs(this);
+            boolean haveKey = tagManager.hasPublicKey();
+
+            List<TagView> views;
+            try {
+                views = mVerifier.parseBatch(tagManager, payloads, extraSignData);
+            } catch(InterruptedException e) {
+                return;
+            } finally {
+                tagManager.close();
+            }
+
+            int valid = 0;
+            List<String> lines = new ArrayList<>(views.size());
+            for(int i = 0; i < views.size(); ++i) {
+                TagView view = views.get(i);
+                String result;
+                if(view == null) {
+                    result = getString(R.string.audit_unreadable);
+                } else if(!view.hasSignature() || !haveKey) {
+                    result = getString(R.string.audit_unsigned);
+                } else if(Boolean.TRUE.equals(view.getSignatureValid())) {
+                    result = getString(R.string.audit_valid);
+                    ++valid;
+                } else {
+                    result = getString(R.string.audit_invalid);
+                }
+                String name = view != null ? view.asMap().get("display_name") : null;
+                lines.add(dumps.get(i).uid + (name != null ? " " + name : "") + ": " + result);
+            }
+
+            String status = getString(R.string.audit_result, valid, views.size(), mVerifier.getLastSignaturesPerSecond());
+            runOnUiThread(() -> {
+                mVerifying = false;
+                mResultAdapter.clear();
+                mResultAdapter.addAll(lines);
+                mStatusText.setText(status);
+            });
+        }).start();
+    }
+
+    private void updateStatus() {
+        if(mDumps.isEmpty())
+            mStatusText.setText(R.string.audit_empty);
+        else
+            mStatusText.setText(getString(R.string.audit_scanned, mDumps.size()));
+    }
+
+    private static String hex(byte[] b) {
+        StringBuilder sb = new StringBuilder(b.length * 2);
+        for(byte x: b)
+            sb.append(String.format("%02X", x & 0xFF));
+        return sb.toString();
+    }
+}
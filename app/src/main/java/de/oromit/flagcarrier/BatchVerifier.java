@@ -0,0 +1,119 @@
+package de.oromit.flagcarrier;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Audit driver that parses a crate of tag dumps and splits their signature checks across a
+ * thread pool. Small batches are checked on the calling thread, the pool is only worth it
+ * once every worker gets a decent chunk. The workers are daemon threads, shutdown stops
+ * them early. AuditActivity runs it over the tags scanned before an event.
+ */
+class BatchVerifier {
+    private static final int MIN_CHUNK_SIZE = 32;
+
+    private final ExecutorService executor;
+    private final int threads;
+
+    private long lastDurationNanos = 0;
+    private int lastCount = 0;
+
+    public BatchVerifier() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public BatchVerifier(int threads) {
+        this.threads = Math.max(1, threads);
+        this.executor = Executors.newFixedThreadPool(this.threads, r -> {
+            Thread t = new Thread(r, "BatchVerifier");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Parses a whole audit batch of tag payloads and checks all signatures in one go.
+     * extraSignData holds the UID per payload, or is null. Payloads that can't be parsed
+     * come back as null.
+     */
+    public List<TagView> parseBatch(TagManager tagManager, List<byte[]> payloads, List<byte[]> extraSignData) throws InterruptedException {
+        List<TagView> views = new ArrayList<>(payloads.size());
+        List<TagView> signed = new ArrayList<>();
+        List<CryptoManager.VerifyItem> items = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < payloads.size(); ++i) {
+                tagManager.setExtraSignData(extraSignData != null ? extraSignData.get(i) : null);
+
+                TagView view;
+                try {
+                    view = tagManager.parsePayload(payloads.get(i), false);
+                    if (view.hasSignature() && tagManager.hasPublicKey()) {
+                        items.add(tagManager.buildVerifyItem(view));
+                        signed.add(view);
+                    }
+                } catch (TagManager.TagManagerException e) {
+                    view = null;
+                }
+
+                views.add(view);
+            }
+        } finally {
+            tagManager.setExtraSignData(null);
+        }
+
+        boolean[] res = verify(items);
+        for (int i = 0; i < res.length; ++i)
+            signed.get(i).setSignatureValid(res[i]);
+
+        return views;
+    }
+
+    public boolean[] verify(List<CryptoManager.VerifyItem> items) throws InterruptedException {
+        long start = System.nanoTime();
+        boolean[] res = new boolean[items.size()];
+
+        int chunks = Math.min(threads, items.size() / MIN_CHUNK_SIZE);
+        if (chunks <= 1) {
+            CryptoManager.verifyEach(items, 0, items.size(), res);
+        } else {
+            int chunkSize = (items.size() + chunks - 1) / chunks;
+            List<Future<?>> futures = new ArrayList<>(chunks);
+
+            for (int from = 0; from < items.size(); from += chunkSize) {
+                final int f = from;
+                final int t = Math.min(items.size(), from + chunkSize);
+                futures.add(executor.submit(() -> CryptoManager.verifyEach(items, f, t, res)));
+            }
+
+            try {
+                for (Future<?> future : futures)
+                    future.get();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Batch verification failed", e.getCause());
+            }
+        }
+
+        synchronized (this) {
+            lastDurationNanos = System.nanoTime() - start;
+            lastCount = items.size();
+        }
+
+        return res;
+    }
+
+    // Throughput of the last batch, for audit reports.
+    public synchronized double getLastSignaturesPerSecond() {
+        if (lastDurationNanos == 0)
+            return 0;
+        return lastCount * 1e9 / lastDurationNanos;
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
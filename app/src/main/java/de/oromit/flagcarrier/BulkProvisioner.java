@@ -0,0 +1,344 @@
+package de.oromit.flagcarrier;
+
+import android.nfc.FormatException;
+import android.nfc.NdefMessage;
+import android.nfc.Tag;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Writes a roster of profiles to one tag after another, in roster order. A worker pool encodes
+ * every entry and builds its signed NDEF template ahead of time, so a tap only signs over the
+ * tag UID and writes. A failed write leaves the entry for the next tap. Progress is saved
+ * after every tag and an interrupted run resumes with the first entry not written yet.
+ */
+class BulkProvisioner {
+    enum Status { PENDING, READY, WRITING, WRITTEN, FAILED }
+
+    interface Listener {
+        // Called on the worker and tap threads.
+        void onEntryChanged(Entry entry);
+    }
+
+    class Entry {
+        public final int number;
+        public final Map<String, String> data;
+        final PreparedMessage message;
+
+        private Status status = Status.PENDING;
+        private String error = null;
+        private String uid = null;
+
+        Entry(int number, Map<String, String> data) {
+            this.number = number;
+            this.data = Collections.unmodifiableMap(data);
+            this.message = new PreparedMessage(data);
+        }
+
+        public Status getStatus() {
+            synchronized (BulkProvisioner.this) {
+                return status;
+            }
+        }
+
+        // Why encoding or the last write failed, null if it didn't.
+        public String getError() {
+            synchronized (BulkProvisioner.this) {
+                return error;
+            }
+        }
+
+        // UID of the tag the entry went to once written, empty if the tag had none.
+        public String getUid() {
+            synchronized (BulkProvisioner.this) {
+                return uid;
+            }
+        }
+
+        @Override
+        public String toString() {
+            synchronized (BulkProvisioner.this) {
+                String s = number + ". " + data.get("display_name") + ": " + status.name().toLowerCase();
+                if (status == Status.WRITTEN && !uid.isEmpty())
+                    s += " to " + uid;
+                if (error != null)
+                    s += " (" + error + ")";
+                return s;
+            }
+        }
+    }
+
+    private final List<Entry> entries = new ArrayList<>();
+    private final CryptoManager.PreparedSigner signer;
+    private final File stateFile;
+    private final TagManager tagManager = new TagManager();
+    private final ExecutorService pool;
+
+    private volatile boolean makeReadOnly = false;
+    private volatile Listener listener = null;
+
+    /**
+     * Signs with signer if it's set. Progress goes to stateFile, unless that's null.
+     */
+    public BulkProvisioner(List<Map<String, String>> roster, CryptoManager.PreparedSigner signer, File stateFile) {
+        for (Map<String, String> data : roster)
+            entries.add(new Entry(entries.size() + 1, data));
+
+        this.signer = signer;
+        this.stateFile = stateFile;
+        this.pool = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1),
+                BulkProvisioner::newWorker);
+    }
+
+    // Every worker encodes all its entries with one encoder and frees it when the pool goes.
+    private static Thread newWorker(Runnable r) {
+        return new Thread(() -> {
+            try {
+                r.run();
+            } finally {
+                PreparedMessage.endEncoder();
+            }
+        });
+    }
+
+    // Picks up the saved progress, null if there is none.
+    public static BulkProvisioner load(File stateFile, CryptoManager.PreparedSigner signer) throws IOException {
+        if (!stateFile.exists())
+            return null;
+
+        byte[] b = new byte[(int)stateFile.length()];
+        try (InputStream in = new FileInputStream(stateFile)) {
+            int n = 0;
+            while (n < b.length) {
+                int r = in.read(b, n, b.length - n);
+                if (r < 0)
+                    throw new IOException("Roster state truncated");
+                n += r;
+            }
+        }
+
+        try {
+            JSONArray arr = new JSONObject(new String(b, StandardCharsets.UTF_8)).getJSONArray("entries");
+            List<Map<String, String>> roster = new ArrayList<>(arr.length());
+            List<String> uids = new ArrayList<>(arr.length());
+
+            for (int i = 0; i < arr.length(); ++i) {
+                JSONObject obj = arr.getJSONObject(i);
+                JSONObject data = obj.getJSONObject("data");
+
+                Map<String, String> map = new LinkedHashMap<>();
+                Iterator<String> keys = data.keys();
+                while (keys.hasNext()) {
+                    String key = keys.next();
+                    map.put(key, data.getString(key));
+                }
+
+                roster.add(map);
+                uids.add(obj.has("uid") ? obj.getString("uid") : null);
+            }
+
+            BulkProvisioner p = new BulkProvisioner(roster, signer, stateFile);
+            for (int i = 0; i < uids.size(); ++i) {
+                if (uids.get(i) != null) {
+                    p.entries.get(i).status = Status.WRITTEN;
+                    p.entries.get(i).uid = uids.get(i);
+                }
+            }
+            return p;
+        } catch(JSONException e) {
+            throw new IOException("Malformed roster state: " + e.getMessage());
+        }
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void setMakeReadOnly(boolean makeReadOnly) {
+        this.makeReadOnly = makeReadOnly;
+    }
+
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    public int getCount() {
+        return entries.size();
+    }
+
+    public synchronized int getWrittenCount() {
+        int n = 0;
+        for (Entry e : entries) {
+            if (e.status == Status.WRITTEN)
+                ++n;
+        }
+        return n;
+    }
+
+    // Hands every entry that isn't written yet to the pool, in roster order.
+    public void start() {
+        for (Entry e : entries) {
+            if (e.getStatus() == Status.PENDING)
+                pool.execute(() -> prepare(e));
+        }
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+        tagManager.close();
+    }
+
+    private void prepare(Entry e) {
+        String error = null;
+        try {
+            e.message.prepare(signer);
+        } catch(TagManager.TagManagerException ex) {
+            error = ex.getMessage();
+        }
+
+        synchronized (this) {
+            if (e.status != Status.PENDING)
+                return;
+            e.status = error == null ? Status.READY : Status.FAILED;
+            e.error = error;
+        }
+        notifyChanged(e);
+    }
+
+    /**
+     * Writes the next entry to tag and returns it, or null once all entries are done.
+     * Its status tells how the write went.
+     */
+    public Entry write(Tag tag) throws TagManager.TagManagerException {
+        TagSession session = TagSession.get(tag);
+        if (session == null)
+            throw new TagManager.TagManagerException("Tag not Ndef formatable");
+
+        return write(session, tag.getId(), TagManager.extraSignDataFromTag(tag));
+    }
+
+    public Entry write(TagSession session, byte[] uid, byte[] extraSignData) throws TagManager.TagManagerException {
+        Entry e = claimNext();
+        if (e == null)
+            return null;
+        notifyChanged(e);
+
+        // Encodes right here if the pool didn't get to it yet. Tap threads don't live long
+        // enough to reuse the encoder.
+        try {
+            e.message.prepare(signer);
+        } catch(TagManager.TagManagerException ex) {
+            synchronized (this) {
+                e.status = Status.FAILED;
+                e.error = ex.getMessage();
+            }
+            notifyChanged(e);
+            return e;
+        } finally {
+            PreparedMessage.endEncoder();
+        }
+
+        String error = null;
+        try {
+            byte[] ndef = e.message.sign(signer, extraSignData, 0, extraSignData.length);
+            NdefMessage msg = new NdefMessage(ndef);
+
+            tagManager.writeToTag(session, msg, makeReadOnly);
+        } catch(TagManager.TagManagerException ex) {
+            error = ex.getMessage();
+        } catch(FormatException ex) {
+            error = "Malformed Ndef message";
+        }
+
+        synchronized (this) {
+            if (error == null) {
+                e.status = Status.WRITTEN;
+                e.uid = hex(uid);
+            } else {
+                e.status = Status.READY;
+            }
+            e.error = error;
+        }
+        notifyChanged(e);
+
+        if (error == null)
+            save();
+        return e;
+    }
+
+    // First entry in roster order that isn't written, being written or broken.
+    private synchronized Entry claimNext() {
+        for (Entry e : entries) {
+            if (e.status == Status.PENDING || e.status == Status.READY) {
+                e.status = Status.WRITING;
+                return e;
+            }
+        }
+        return null;
+    }
+
+    private void notifyChanged(Entry e) {
+        Listener l = listener;
+        if (l != null)
+            l.onEntryChanged(e);
+    }
+
+    // Written to a temporary file first, so a crash can't leave half a state behind.
+    public void save() throws TagManager.TagManagerException {
+        if (stateFile == null)
+            return;
+
+        String json;
+        try {
+            JSONArray arr = new JSONArray();
+            synchronized (this) {
+                for (Entry e : entries) {
+                    JSONObject obj = new JSONObject();
+                    obj.put("data", new JSONObject(e.data));
+                    if (e.status == Status.WRITTEN)
+                        obj.put("uid", e.uid);
+                    arr.put(obj);
+                }
+            }
+            json = new JSONObject().put("entries", arr).toString();
+        } catch(JSONException e) {
+            throw new TagManager.TagManagerException("Failed to save progress: " + e.getMessage());
+        }
+
+        synchronized (stateFile) {
+            File tmp = new File(stateFile.getPath() + ".tmp");
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                out.write(json.getBytes(StandardCharsets.UTF_8));
+            } catch(IOException e) {
+                throw new TagManager.TagManagerException("Failed to save progress: " + e.getMessage());
+            }
+            if (!tmp.renameTo(stateFile))
+                throw new TagManager.TagManagerException("Failed to save progress");
+        }
+    }
+
+    private static String hex(byte[] b) {
+        StringBuilder sb = new StringBuilder(b.length * 2);
+        for (byte x : b)
+            sb.append(String.format("%02X", x & 0xFF));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,257 @@
+package de.oromit.flagcarrier;
+
+import android.app.PendingIntent;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.nfc.NfcAdapter;
+import android.nfc.Tag;
+import android.os.Bundle;
+import android.preference.PreferenceManager;
+import android.support.v7.app.AppCompatActivity;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuInflater;
+import android.view.MenuItem;
+import android.widget.ArrayAdapter;
+import android.widget.ListView;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes a whole roster, every tapped tag gets the next profile. The roster and what has
+ * been written survive the activity, it carries on where it left off when opened again.
+ */
+public class BulkWriteActivity extends AppCompatActivity implements BulkProvisioner.Listener {
+    private static final String TAG = "BulkWriteActivity";
+    private static final String STATE_FILE = "bulk_roster.json";
+    private static final int REQUEST_IMPORT = 1;
+
+    private NfcAdapter mAdapter;
+    private PendingIntent mPendingIntent;
+    private IntentFilter[] mWriteTagFilters;
+
+    private BulkProvisioner mProvisioner = null;
+    private ArrayAdapter<BulkProvisioner.Entry> mEntryAdapter;
+    private TextView mProgressText;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        setContentView(R.layout.activity_bulk_write);
+        setTitle(R.string.bulk_write_title);
+
+        mProgressText = findViewById(R.id.bulkProgressText);
+        mEntryAdapter = new ArrayAdapter<>(this, android.R.layout.simple_list_item_1);
+        ListView list = findViewById(R.id.bulkEntryList);
+        list.setAdapter(mEntryAdapter);
+
+        mAdapter = NfcAdapter.getDefaultAdapter(this);
+
+        mPendingIntent = PendingIntent.getActivity(
+                this,
+                0,
+                new Intent(this, getClass())
+                        .addFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP),
+                0);
+        mWriteTagFilters = new IntentFilter[] {
+                new IntentFilter(NfcAdapter.ACTION_TAG_DISCOVERED),
+                new IntentFilter(NfcAdapter.ACTION_NDEF_DISCOVERED),
+                new IntentFilter(NfcAdapter.ACTION_TECH_DISCOVERED)
+        };
+
+        try {
+            setProvisioner(BulkProvisioner.load(getStateFile(), KeyMaterial.getInstance(this).getSigner()));
+        } catch(IOException e) {
+            Toast.makeText(this, "Failed to resume: " + e.getMessage(), Toast.LENGTH_LONG).show();
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if(mProvisioner != null)
+            mProvisioner.shutdown();
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        MenuInflater inflater = getMenuInflater();
+        inflater.inflate(R.menu.bulk_menu, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch(item.getItemId()) {
+            case R.id.importRosterOption:
+                Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+                intent.addCategory(Intent.CATEGORY_OPENABLE);
+                intent.setType("*/*");
+                startActivityForResult(intent, REQUEST_IMPORT);
+                return true;
+            case R.id.clearRosterOption:
+                if(!getStateFile().delete() && getStateFile().exists())
+                    Toast.makeText(this, "Failed to delete roster", Toast.LENGTH_LONG).show();
+                setProvisioner(null);
+                return true;
+            default:
+                return super.onOptionsItemSelected(item);
+        }
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+
+        if(requestCode != REQUEST_IMPORT || resultCode != RESULT_OK || data == null || data.getData() == null)
+            return;
+
+        try {
+            List<Map<String, String>> roster = Roster.parse(readText(data.getData()));
+            BulkProvisioner p = new BulkProvisioner(roster, KeyMaterial.getInstance(this).getSigner(), getStateFile());
+            p.save();
+            setProvisioner(p);
+        } catch(IOException e) {
+            Toast.makeText(this, "Failed to read roster: " + e.getMessage(), Toast.LENGTH_LONG).show();
+        } catch(Roster.RosterException | TagManager.TagManagerException e) {
+            Toast.makeText(this, e.getMessage(), Toast.LENGTH_LONG).show();
+        }
+    }
+
+    private String readText(Uri uri) throws IOException {
+        try(InputStream in = getContentResolver().openInputStream(uri)) {
+            if(in == null)
+                throw new IOException("No content");
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while((n = in.read(buf)) > 0)
+                out.write(buf, 0, n);
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private File getStateFile() {
+        return new File(getFilesDir(), STATE_FILE);
+    }
+
+    private void setProvisioner(BulkProvisioner p) {
+        if(mProvisioner != null)
+            mProvisioner.shutdown();
+
+        mProvisioner = p;
+        mEntryAdapter.clear();
+
+        if(p != null) {
+            mEntryAdapter.addAll(p.getEntries());
+            p.setListener(this);
+            p.start();
+        }
+
+        updateProgress();
+    }
+
+    private void updateProgress() {
+        if(mProvisioner == null) {
+            mProgressText.setText(R.string.bulk_no_roster);
+            return;
+        }
+
+        int written = mProvisioner.getWrittenCount();
+        int count = mProvisioner.getCount();
+        if(written == count)
+            mProgressText.setText(getString(R.string.bulk_done, count));
+        else
+            mProgressText.setText(getString(R.string.bulk_progress, written, count));
+    }
+
+    @Override
+    public void onEntryChanged(BulkProvisioner.Entry entry) {
+        runOnUiThread(() -> {
+            mEntryAdapter.notifyDataSetChanged();
+            updateProgress();
+        });
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+
+        if(mAdapter == null) {
+            Toast.makeText(this, "No NFC adapter found", Toast.LENGTH_LONG).show();
+            return;
+        }
+
+        if(!mAdapter.isEnabled()) {
+            Toast.makeText(this, "NFC Adapter is disabled", Toast.LENGTH_LONG).show();
+            return;
+        }
+
+        mAdapter.enableForegroundDispatch(this, mPendingIntent, mWriteTagFilters, null);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        if(mAdapter != null)
+            mAdapter.disableForegroundDispatch(this);
+    }
+
+    @Override
+    protected void onNewIntent(Intent intent) {
+        super.onNewIntent(intent);
+        String a = intent.getAction();
+        if(NfcAdapter.ACTION_TAG_DISCOVERED.equals(a)
+                || NfcAdapter.ACTION_NDEF_DISCOVERED.equals(a)
+                || NfcAdapter.ACTION_TECH_DISCOVERED.equals(a)) {
+            Tag tag = intent.getParcelableExtra(NfcAdapter.EXTRA_TAG);
+            if(tag != null)
+                writeNextToTag(tag);
+        }
+    }
+
+    // Only signing and the tag IO are left at this point, both off the UI thread.
+    private void writeNextToTag(Tag tag) {
+        BulkProvisioner p = mProvisioner;
+        if(p == null) {
+            Toast.makeText(this, "No roster loaded!", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        p.setMakeReadOnly(prefs.getBoolean("lock_written_tags", false));
+
+        new Thread(() -> {
+            long start = System.nanoTime();
+
+            try {
+                BulkProvisioner.Entry e = p.write(tag);
+                if(e == null) {
+                    runOnUiThread(() -> Toast.makeText(this, "All entries are written", Toast.LENGTH_SHORT).show());
+                    return;
+                }
+
+                Log.d(TAG, "Entry " + e.number + " " + e.getStatus() + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+
+                String msg = e.getStatus() == BulkProvisioner.Status.WRITTEN
+                        ? "Wrote " + e.data.get("display_name")
+                        : e.data.get("display_name") + ": " + e.getError();
+                runOnUiThread(() -> Toast.makeText(this, msg, Toast.LENGTH_SHORT).show());
+            } catch(TagManager.TagManagerException e) {
+                runOnUiThread(() -> Toast.makeText(this, e.getMessage(), Toast.LENGTH_LONG).show());
+            }
+        }).start();
+    }
+}
@@ -0,0 +1,159 @@
+package de.oromit.flagcarrier;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Works out the exact size of the NDEF message a profile is written as, signature and
+ * application record included, and which common tag chips it fits on. It also suggests
+ * optional fields to leave out to get down to the next smaller chip. The codec is picked by
+ * PayloadEncoder already, so there's nothing to gain there.
+ * Only the payload is encoded, the signature has a fixed size and isn't computed.
+ */
+class CapacityPlanner {
+    static class Chip {
+        public final String name;
+        public final int dataSize;
+
+        Chip(String name, int dataSize) {
+            this.name = name;
+            this.dataSize = dataSize;
+        }
+
+        // Largest NDEF message that fits the data area behind its TLV header.
+        public int getMaxMessageSize() {
+            return dataSize - 4 >= 0xFF ? dataSize - 4 : Math.min(dataSize - 2, 0xFE);
+        }
+    }
+
+    // Data areas as the CC (Type 2) or the MAD (MIFARE Classic) announce them, smallest first.
+    static final Chip[] CHIPS = {
+            new Chip("NTAG213", 144),
+            new Chip("Ultralight C", 144),
+            new Chip("NTAG215", 496),
+            new Chip("MIFARE Classic 1K", 720),
+            new Chip("NTAG216", 872),
+    };
+
+    private static final String[] REQUIRED = { "display_name", "country_code" };
+
+    static class Plan {
+        public final int size;
+        public final int payloadSize;
+        public final boolean signed;
+
+        // Next smaller chip the message can be made to fit and the fields to leave out for it,
+        // both null if there is none.
+        public final Chip dropTarget;
+        public final List<String> drop;
+
+        Plan(int size, int payloadSize, boolean signed, Chip dropTarget, List<String> drop) {
+            this.size = size;
+            this.payloadSize = payloadSize;
+            this.signed = signed;
+            this.dropTarget = dropTarget;
+            this.drop = drop;
+        }
+
+        public boolean fits(Chip chip) {
+            return size <= chip.getMaxMessageSize();
+        }
+
+        // Smallest chip the message fits, null if none.
+        public Chip getSmallestChip() {
+            for (Chip chip : CHIPS) {
+                if (fits(chip))
+                    return chip;
+            }
+            return null;
+        }
+    }
+
+    private final PayloadEncoder encoder = new PayloadEncoder();
+
+    private Map<String, String> lastData = null;
+    private boolean lastSigned = false;
+    private Plan lastPlan = null;
+
+    /**
+     * Cheap enough for every keystroke, unchanged input returns the last plan and fields are
+     * only dropped tentatively while the message doesn't fit.
+     */
+    public Plan plan(Map<String, String> data, boolean signed) throws TagManager.TagManagerException {
+        if (lastPlan != null && signed == lastSigned && data.equals(lastData))
+            return lastPlan;
+
+        int payloadSize = encoder.encode(data, null, null).length;
+        int size = messageSize(payloadSize, signed);
+
+        Chip dropTarget = null;
+        List<String> drop = null;
+
+        // Chips below the smallest that fits, largest first. Of same sized ones only the first.
+        for (int i = CHIPS.length - 1; i >= 0 && drop == null; --i) {
+            int chipSize = CHIPS[i].getMaxMessageSize();
+            if (chipSize >= size || (i > 0 && CHIPS[i - 1].getMaxMessageSize() == chipSize))
+                continue;
+
+            drop = suggestDrop(data, signed, chipSize);
+            if (drop != null)
+                dropTarget = CHIPS[i];
+        }
+
+        lastData = new LinkedHashMap<>(data);
+        lastSigned = signed;
+        lastPlan = new Plan(size, payloadSize, signed, dropTarget, drop);
+        return lastPlan;
+    }
+
+    // Frees the encoder's native zlib state, the next plan sets it up again.
+    public void end() {
+        encoder.end();
+    }
+
+    public static int messageSize(int payloadSize, boolean signed) {
+        return TagManager.messageSize(payloadSize + (signed ? PayloadFormat.SIGNED_HEADER_SIZE : 0));
+    }
+
+    // Greedy, every round leaves out whichever field saves the most.
+    private List<String> suggestDrop(Map<String, String> data, boolean signed, int maxSize) throws TagManager.TagManagerException {
+        Map<String, String> rest = new LinkedHashMap<>(data);
+        List<String> drop = new ArrayList<>();
+
+        while (true) {
+            String best = null;
+            int bestSize = Integer.MAX_VALUE;
+
+            for (String key : rest.keySet()) {
+                if (isRequired(key) || rest.get(key).isEmpty())
+                    continue;
+
+                Map<String, String> without = new LinkedHashMap<>(rest);
+                without.remove(key);
+                int size = messageSize(encoder.encode(without, null, null).length, signed);
+                if (size < bestSize) {
+                    best = key;
+                    bestSize = size;
+                }
+            }
+
+            if (best == null)
+                return null;
+
+            rest.remove(best);
+            drop.add(best);
+            if (bestSize <= maxSize)
+                return drop;
+        }
+    }
+
+    private static boolean isRequired(String key) {
+        for (String r : REQUIRED) {
+            if (r.equals(key))
+                return true;
+        }
+        return false;
+    }
+}
@@ -1,7 +1,11 @@
 package de.oromit.flagcarrier;
 
 import org.bouncycastle.math.ec.rfc8032.Ed25519;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.List;
 
 public class CryptoManager {
     static class CryptoManagerException extends Exception {
@@ -15,6 +19,118 @@ public class CryptoManager {
         public byte[] PrivateKey;
     }
 
+    /**
+     * Signer for one private key. The public key is derived once up front instead of on every
+     * signature, which is most of the cost of Ed25519.sign without it.
+     */
+    public static class PreparedSigner {
+        private final byte[] secretKey;
+        private final byte[] publicKey;
+
+        private final int keyId;
+
+        public PreparedSigner(byte[] privateKey) {
+            if (privateKey.length == Ed25519.SECRET_KEY_SIZE || privateKey.length == Ed25519.SECRET_KEY_SIZE + Ed25519.PUBLIC_KEY_SIZE) {
+                secretKey = Arrays.copyOf(privateKey, Ed25519.SECRET_KEY_SIZE);
+                publicKey = new byte[Ed25519.PUBLIC_KEY_SIZE];
+                Ed25519.generatePublicKey(secretKey, 0, publicKey, 0);
+                keyId = CryptoManager.keyId(publicKey);
+            } else {
+                secretKey = null;
+                publicKey = null;
+                keyId = 0;
+            }
+        }
+
+        public byte[] getPublicKey() {
+            return publicKey;
+        }
+
+        public int getKeyId() {
+            return keyId;
+        }
+
+        public void sign(byte[] msg, int msgOff, int msgLen, byte[] sig, int sigOff) throws CryptoManagerException {
+            if (secretKey == null)
+                throw new CryptoManagerException("Invalid private key size for signing.");
+            if (sig.length - sigOff < Ed25519.SIGNATURE_SIZE)
+                throw new CryptoManagerException("Signature buffer too small.");
+
+            Ed25519.sign(secretKey, 0, publicKey, 0, msg, msgOff, msgLen, sig, sigOff);
+        }
+    }
+
+    /**
+     * Verifier for one public key, checked once when it is built.
+     */
+    public static class PreparedVerifier {
+        private final byte[] publicKey;
+        private final int keyId;
+
+        public PreparedVerifier(byte[] publicKey) {
+            this.publicKey = publicKey.length == Ed25519.PUBLIC_KEY_SIZE ? publicKey.clone() : null;
+            this.keyId = this.publicKey != null ? CryptoManager.keyId(this.publicKey) : 0;
+        }
+
+        public byte[] getPublicKey() {
+            return publicKey;
+        }
+
+        public int getKeyId() {
+            return keyId;
+        }
+
+        public boolean verify(byte[] sig, int sigOff, byte[] msg, int msgOff, int msgLen) throws CryptoManagerException {
+            if (publicKey == null)
+                throw new CryptoManagerException("Public key size is invalid for verification.");
+            if (sig.length - sigOff < Ed25519.SIGNATURE_SIZE)
+                throw new CryptoManagerException("Signature size is invalid for verification.");
+
+            return Ed25519.verify(sig, sigOff, publicKey, 0, msg, msgOff, msgLen);
+        }
+    }
+
+    /**
+     * One signature check of a batch. The message is a slice of msg, a signature counts as
+     * valid if any of the candidate verifiers accepts it.
+     */
+    public static class VerifyItem {
+        private final byte[] sig;
+        private final int sigOff;
+        private final byte[] msg;
+        private final int msgOff;
+        private final int msgLen;
+        private final List<PreparedVerifier> verifiers;
+
+        public VerifyItem(byte[] sig, byte[] msg, int msgOff, int msgLen, List<PreparedVerifier> verifiers) {
+            this(sig, 0, msg, msgOff, msgLen, verifiers);
+        }
+
+        public VerifyItem(byte[] sig, int sigOff, byte[] msg, int msgOff, int msgLen, List<PreparedVerifier> verifiers) {
+            this.sig = sig;
+            this.sigOff = sigOff;
+            this.msg = msg;
+            this.msgOff = msgOff;
+            this.msgLen = msgLen;
+            this.verifiers = verifiers;
+        }
+
+        public boolean verify() throws CryptoManagerException {
+            for (PreparedVerifier verifier : verifiers)
+                if (verifier.verify(sig, sigOff, msg, msgOff, msgLen))
+                    return true;
+            return false;
+        }
+    }
+
+    public static final int SIGNATURE_SIZE = Ed25519.SIGNATURE_SIZE;
+    public static final int PUBLIC_KEY_SIZE = Ed25519.PUBLIC_KEY_SIZE;
+
+    static {
+        // Builds the base point tables now rather than on the first tap.
+        Ed25519.precompute();
+    }
+
     private static final SecureRandom random = new SecureRandom();
 
     public static KeyPair genKeyPair() {
@@ -32,6 +148,16 @@ public class CryptoManager {
         return res;
     }
 
+    // First four bytes of the SHA-256 of the public key, enough to tell a handful of keys apart.
+    public static int keyId(byte[] publicKey) {
+        try {
+            byte[] h = MessageDigest.getInstance("SHA-256").digest(publicKey);
+            return ((h[0] & 0xFF) << 24) | ((h[1] & 0xFF) << 16) | ((h[2] & 0xFF) << 8) | (h[3] & 0xFF);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available");
+        }
+    }
+
     public static byte[] signDetached(byte[] msg, byte[] privateKey) throws CryptoManagerException {
         if (privateKey.length != Ed25519.SECRET_KEY_SIZE && privateKey.length != Ed25519.SECRET_KEY_SIZE + Ed25519.PUBLIC_KEY_SIZE)
             throw new CryptoManagerException("Invalid private key size for signing.");
@@ -41,6 +167,21 @@ public class CryptoManager {
         return res;
     }
 
+    /**
+     * Checks items[from, to) one by one and stores one result per item in res. BouncyCastle
+     * has no combined Ed25519 batch check, BatchVerifier gets its speed from running chunks
+     * of these in parallel. A broken key makes only its own item fail.
+     */
+    public static void verifyEach(List<VerifyItem> items, int from, int to, boolean[] res) {
+        for (int i = from; i < to; ++i) {
+            try {
+                res[i] = items.get(i).verify();
+            } catch (CryptoManagerException e) {
+                res[i] = false;
+            }
+        }
+    }
+
     public static boolean verifyDetached(byte[] sig, byte[] msg, byte[] publicKey) throws CryptoManagerException {
         if (sig.length != Ed25519.SIGNATURE_SIZE)
             throw new CryptoManagerException("Signature size is invalid for verification.");
@@ -0,0 +1,155 @@
+package de.oromit.flagcarrier;
+
+import android.nfc.FormatException;
+import android.nfc.NdefMessage;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Reader side of the FlagCarrier AID served by HCEService. Selects the AID, sends a fresh
+ * random challenge, reads the NDEF message in the largest chunks the card and the transport
+ * allow and parses it with the challenge as extra sign data, so a replayed answer fails the
+ * signature check. With a trusted key set, unsigned answers are refused too.
+ */
+class HCEReader {
+    public static final String ACTION_LOGIN = "de.oromit.flagcarrier.HCEReader.Login";
+
+    private static final int CHALLENGE_SIZE = 16;
+    private static final int MAX_SHORT_READ = ApduHandler.MAX_SHORT_READ;
+    private static final int MAX_OFFSET = 0x8000;
+
+    private final TagManager tagManager;
+    private final SecureRandom random = new SecureRandom();
+
+    private long lastDuration = 0;
+    private int lastExchanges = 0;
+
+    public HCEReader(TagManager tagManager) {
+        this.tagManager = tagManager;
+    }
+
+    public Map<String, String> read(ApduTransport transport) throws TagManager.TagManagerException, IOException {
+        long start = System.nanoTime();
+        lastExchanges = 0;
+
+        int chunk = select(transport);
+
+        byte[] challenge = new byte[CHALLENGE_SIZE];
+        random.nextBytes(challenge);
+
+        byte[] update = new byte[5 + CHALLENGE_SIZE];
+        update[1] = (byte)0xD6;
+        update[4] = CHALLENGE_SIZE;
+        System.arraycopy(challenge, 0, update, 5, CHALLENGE_SIZE);
+        exchange(transport, update);
+
+        NdefMessage msg;
+        try {
+            msg = new NdefMessage(readAll(transport, chunk));
+        } catch(FormatException e) {
+            throw new TagManager.TagManagerException("Malformed Ndef message");
+        }
+
+        Map<String, String> res;
+        tagManager.setExtraSignData(challenge);
+        try {
+            res = tagManager.parseMessage(msg);
+        } finally {
+            tagManager.setExtraSignData(null);
+        }
+
+        if (tagManager.hasPublicKey()) {
+            String sigValid = res.get("sig_valid");
+            if (sigValid == null)
+                throw new TagManager.TagManagerException("Missing signature");
+            if (!sigValid.equals("true"))
+                throw new TagManager.TagManagerException("Invalid signature!");
+        }
+
+        lastDuration = System.nanoTime() - start;
+        return res;
+    }
+
+    // Time from SELECT to the verified profile of the last successful read.
+    public long getLastDurationMillis() {
+        return lastDuration / 1000000;
+    }
+
+    public int getLastExchanges() {
+        return lastExchanges;
+    }
+
+    // Returns the read chunk size, extended if the card advertises it and the transport can.
+    private int select(ApduTransport transport) throws TagManager.TagManagerException, IOException {
+        byte[] aid = ApduHandler.FLAGCARRIER_AID;
+        byte[] select = new byte[5 + aid.length];
+        select[1] = ApduHandler.SELECT_INS;
+        select[2] = 0x04;
+        select[4] = (byte)aid.length;
+        System.arraycopy(aid, 0, select, 5, aid.length);
+
+        exchange(transport, select);
+        if (!transport.isExtendedLengthApduSupported())
+            return MAX_SHORT_READ;
+
+        // Cards from before GET DATA answer with an error, they only do short reads.
+        byte[] res = transport.transceive(new byte[] { 0, ApduHandler.GETDATA_INS,
+                (byte)(ApduHandler.MAX_READ_TAG >> 8), (byte)ApduHandler.MAX_READ_TAG, 2 });
+        ++lastExchanges;
+        if (res == null || res.length != 4 || (res[2] & 0xFF) != 0x90 || res[3] != 0)
+            return MAX_SHORT_READ;
+
+        int cardMax = ((res[0] & 0xFF) << 8) | (res[1] & 0xFF);
+        int chunk = Math.min(cardMax, transport.getMaxTransceiveLength() - 2);
+        return Math.max(chunk, MAX_SHORT_READ);
+    }
+
+    private byte[] readAll(ApduTransport transport, int chunk) throws TagManager.TagManagerException, IOException {
+        byte[] buf = new byte[chunk];
+        int len = 0;
+
+        while (true) {
+            if (len >= MAX_OFFSET)
+                throw new TagManager.TagManagerException("Tag data exceeds " + MAX_OFFSET + " bytes");
+
+            byte[] read;
+            if (chunk > MAX_SHORT_READ)
+                read = new byte[] { 0, (byte)0xB0, (byte)(len >> 8), (byte)len, 0, (byte)(chunk >> 8), (byte)chunk };
+            else
+                read = new byte[] { 0, (byte)0xB0, (byte)(len >> 8), (byte)len, (byte)chunk };
+
+            byte[] res = exchange(transport, read);
+            if (res.length == 0)
+                break;
+
+            if (len + res.length > buf.length)
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + res.length));
+            System.arraycopy(res, 0, buf, len, res.length);
+            len += res.length;
+
+            // The card answers short only at the end of the data.
+            if (res.length < chunk)
+                break;
+        }
+
+        return Arrays.copyOf(buf, len);
+    }
+
+    // Returns the response data without the status word.
+    private byte[] exchange(ApduTransport transport, byte[] apdu) throws TagManager.TagManagerException, IOException {
+        byte[] res = transport.transceive(apdu);
+        ++lastExchanges;
+
+        if (res == null || res.length < 2)
+            throw new TagManager.TagManagerException("Invalid response from card");
+
+        int sw = ((res[res.length - 2] & 0xFF) << 8) | (res[res.length - 1] & 0xFF);
+        if (sw != 0x9000)
+            throw new TagManager.TagManagerException("Card returned error " + String.format("%04X", sw));
+
+        return Arrays.copyOf(res, res.length - 2);
+    }
+}
@@ -1,167 +1,160 @@
 package de.oromit.flagcarrier;
 
-import android.nfc.NdefMessage;
 import android.nfc.cardemulation.HostApduService;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
 
-import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class HCEService extends HostApduService {
     private static final String TAG = "HCE";
 
-    private static final byte[] STATUS_SUCCESS = new byte[] { (byte)0x90, (byte)0x00 };
-    private static final byte[] STATUS_FAILED = new byte[] { (byte)0x6F, (byte)0x00 };
-    private static final byte[] CLA_NOT_SUPPORTED  = new byte[] { (byte)0x6E, (byte)0x00 };
-    private static final byte[] INS_NOT_SUPPORTED  = new byte[] { (byte)0x6D, (byte)0x00 };
-    private static final byte[] FILE_NOT_FOUND  = new byte[] { (byte)0x6A, (byte)0x82 };
-    private static final byte[] WRONG_PARAMETERS  = new byte[] { (byte)0x6B, (byte)0x00 };
+    // Constant false in release builds, so the guarded logging builds no strings there.
+    private static final boolean DEBUG = BuildConfig.DEBUG;
 
-    private static final byte DEFAULT_CLA  = (byte)0x00;
+    // Written by the activities, read on the binder thread that runs processCommandApdu.
+    private static final AtomicReference<PublishedData> published = new AtomicReference<>(PublishedData.EMPTY);
 
-    private static final byte SELECT_INS = (byte)0xA4;
-    private static final byte UPDATEBINARY_INS = (byte)0xD6;
-    private static final byte READBINARY_INS = (byte)0xB0;
+    private static final ExecutorService encodeExecutor = Executors.newSingleThreadExecutor();
 
-    private static final byte[] FLAGCARRIER_AID
-            = new byte[] { (byte)0xf0, (byte)0x5a, (byte)0x25, (byte)0x58,
-                           (byte)0x83, (byte)0x6e, (byte)0x09, (byte)0x66,
-                           (byte)0xae, (byte)0xd5, (byte)0x27, (byte)0xce };
+    private static final int RATE_WINDOW = 16;
+    private static final long[] handOffTimes = new long[RATE_WINDOW];
+    private static int handOffCount = 0;
 
-    private static Map<String, String> dataToPublish = null;
-    private static Map<String, String> dataToPublishOnce = null;
-
-    private TagManager tagManager = new TagManager();
+    private KeyMaterial keyMaterial = null;
 
     public static void publishData(Map<String, String> data)
     {
-        dataToPublish = data;
+        PreparedMessage msg = prepare(data);
+
+        PublishedData cur;
+        do {
+            cur = published.get();
+        } while (!published.compareAndSet(cur, cur.withData(msg)));
     }
 
     public static void publishOneTimeData(Map<String, String> data)
     {
-        dataToPublishOnce = data;
-    }
-
-    private byte[] ndefData = null;
-    private int highestReadEnd = 0;
+        PreparedMessage msg = prepare(data);
 
-    @Override
-    public byte[] processCommandApdu(byte[] commandApdu, Bundle extras) {
-        if (commandApdu == null || commandApdu.length < 5)
-            return STATUS_FAILED;
-
-        if (commandApdu[0] != DEFAULT_CLA)
-            return CLA_NOT_SUPPORTED;
-
-        switch (commandApdu[1])
-        {
-            case SELECT_INS:
-                return processSelect(commandApdu);
-            case UPDATEBINARY_INS:
-                return processUpdate(commandApdu);
-            case READBINARY_INS:
-                return processRead(commandApdu);
-            default:
-                return INS_NOT_SUPPORTED;
-        }
+        PublishedData cur;
+        do {
+            cur = published.get();
+        } while (!published.compareAndSet(cur, cur.withOneTimeData(msg)));
     }
 
-    private byte[] processSelect(byte[] commandApdu) {
-        if (commandApdu[2] != 0x04 || commandApdu[3] != 0x00)
-            return STATUS_FAILED;
-
-        if (commandApdu[4] != FLAGCARRIER_AID.length)
-            return FILE_NOT_FOUND;
+    /**
+     * Appends to the one-time queue, every entry is handed out once and encoded in the background.
+     * publishOneTimeData replaces the whole queue.
+     */
+    public static void queueOneTimeData(Map<String, String> data)
+    {
+        PreparedMessage msg = new PreparedMessage(data);
+
+        PublishedData cur;
+        do {
+            cur = published.get();
+        } while (!published.compareAndSet(cur, cur.withQueuedOneTimeData(msg)));
+
+        // A tap before this is done just encodes on the binder thread.
+        encodeExecutor.execute(() -> {
+            try {
+                msg.prepare();
+            } catch(TagManager.TagManagerException e) {
+                Log.e(TAG, e.getMessage());
+            }
+        });
+    }
 
-        for (int i = 0; i < FLAGCARRIER_AID.length; ++i)
-            if (commandApdu[5 + i] != FLAGCARRIER_AID[i])
-                return FILE_NOT_FOUND;
+    public static long getPublishedVersion() {
+        return published.get().version;
+    }
 
-        return STATUS_SUCCESS;
+    public static int getQueueDepth() {
+        return published.get().getQueueDepth();
     }
 
-    private byte[] processUpdate(byte[] commandApdu) {
-        int address = ((commandApdu[2] & 0xFF) << 8) | (commandApdu[3] & 0xFF);
-        if (address < 0 || address >= 1024)
-            return WRONG_PARAMETERS;
+    public static synchronized int getHandOffCount() {
+        return handOffCount;
+    }
 
-        if (address != 0)
-            return WRONG_PARAMETERS;
+    // Hand-offs per minute over the last few, 0 until there have been two.
+    public static synchronized float getHandOffRate() {
+        int n = Math.min(handOffCount, RATE_WINDOW);
+        if (n < 2)
+            return 0;
 
-        int length = commandApdu[4] & 0xFF;
-        if (commandApdu.length < length + 5)
-            return STATUS_FAILED;
+        long first = handOffTimes[(handOffCount - n) % RATE_WINDOW];
+        long last = handOffTimes[(handOffCount - 1) % RATE_WINDOW];
+        if (last == first)
+            return 0;
 
-        Map<String, String> kvData = dataToPublish;
-        if (dataToPublishOnce != null)
-            kvData = dataToPublishOnce;
+        return (n - 1) * 60000f / (last - first);
+    }
 
-        if (kvData == null)
-            return FILE_NOT_FOUND;
+    private static synchronized void recordHandOff() {
+        handOffTimes[handOffCount % RATE_WINDOW] = SystemClock.elapsedRealtime();
+        ++handOffCount;
+    }
 
-        byte[] challenge = Arrays.copyOfRange(commandApdu, 5, 5 + length);
+    // Encoding and compression happen once here, a challenge only costs the signature.
+    private static PreparedMessage prepare(Map<String, String> data) {
+        if (data == null)
+            return null;
 
         try {
-            tagManager.loadKeysFromPrefs(this);
-            tagManager.setExtraSignData(challenge);
-
-            NdefMessage msg = tagManager.generateMessage(kvData);
-            ndefData = msg.toByteArray();
+            return PreparedMessage.encode(data);
         } catch(TagManager.TagManagerException e) {
             Log.e(TAG, e.getMessage());
-            return STATUS_FAILED;
+            return null;
         }
-
-        highestReadEnd = 0;
-
-        Log.d(TAG, "Generated data of " + ndefData.length + " bytes");
-
-        return STATUS_SUCCESS;
     }
 
-    private byte[] processRead(byte[] commandApdu) {
-        int offset = ((commandApdu[2] & 0xFF) << 8) | (commandApdu[3] & 0xFF);
-        if (offset < 0 || offset >= 0x8000)
-            return WRONG_PARAMETERS;
-
-        int length = commandApdu[4] & 0xFF;
-        if (length <= 0 || length > 253)
-            length = 253;
+    // Timing every APDU is only for debug builds, release builds keep the tap path bare.
+    private static final ApduStats apduStats = DEBUG ? new ApduStats() : null;
 
-        Log.d(TAG, "Got read request at " + offset + " for " + length + " bytes.");
-
-        if (ndefData == null)
-            return FILE_NOT_FOUND;
-
-        if (offset >= ndefData.length)
-            return STATUS_SUCCESS;
+    private final ApduHandler handler = new ApduHandler(published, apduStats, new ApduHandler.Logger() {
+        @Override
+        public void debug(String msg) {
+            Log.d(TAG, msg);
+        }
 
-        int end = offset + length;
-        if (end > ndefData.length)
-            end = ndefData.length;
+        @Override
+        public void error(String msg) {
+            Log.e(TAG, msg);
+        }
+    }, DEBUG);
 
-        if (end > highestReadEnd)
-            highestReadEnd = end;
+    // Null in release builds.
+    public static ApduStats getApduStats() {
+        return apduStats;
+    }
 
-        byte[] res = Arrays.copyOfRange(ndefData, offset, end + 2);
-        System.arraycopy(STATUS_SUCCESS, 0, res, res.length - 2, 2);
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        keyMaterial = KeyMaterial.getInstance(this);
+    }
 
-        return res;
+    @Override
+    public byte[] processCommandApdu(byte[] commandApdu, Bundle extras) {
+        handler.setSigner(keyMaterial.getSigner());
+        return handler.process(commandApdu);
     }
 
     @Override
     public void onDeactivated(int reason) {
-        Log.d(TAG, "Deactivate: " + reason);
+        if (DEBUG)
+            Log.d(TAG, "Deactivate: " + reason);
 
-        if (ndefData != null && highestReadEnd >= ndefData.length) {
-            Log.d(TAG, "Clearing one-time data.");
-            dataToPublishOnce = null;
+        if (handler.deactivate()) {
+            recordHandOff();
+            if (DEBUG)
+                Log.d(TAG, "Handed out one-time data, " + getQueueDepth() + " left.");
         }
-
-        ndefData = null;
     }
 }
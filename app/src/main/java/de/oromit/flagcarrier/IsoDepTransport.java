@@ -0,0 +1,45 @@
+package de.oromit.flagcarrier;
+
+import android.nfc.Tag;
+import android.nfc.tech.IsoDep;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+class IsoDepTransport implements ApduTransport, Closeable {
+    private final IsoDep isoDep;
+
+    private IsoDepTransport(IsoDep isoDep) {
+        this.isoDep = isoDep;
+    }
+
+    // Returns null if the tag doesn't speak ISO-DEP.
+    public static IsoDepTransport get(Tag tag) {
+        IsoDep isoDep = IsoDep.get(tag);
+        return isoDep != null ? new IsoDepTransport(isoDep) : null;
+    }
+
+    public void connect() throws IOException {
+        isoDep.connect();
+    }
+
+    @Override
+    public byte[] transceive(byte[] apdu) throws IOException {
+        return isoDep.transceive(apdu);
+    }
+
+    @Override
+    public int getMaxTransceiveLength() {
+        return isoDep.getMaxTransceiveLength();
+    }
+
+    @Override
+    public boolean isExtendedLengthApduSupported() {
+        return isoDep.isExtendedLengthApduSupported();
+    }
+
+    @Override
+    public void close() throws IOException {
+        isoDep.close();
+    }
+}
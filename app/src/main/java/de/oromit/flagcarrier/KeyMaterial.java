@@ -0,0 +1,76 @@
+package de.oromit.flagcarrier;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Base64;
+
+/**
+ * Process wide holder of the decoded keys. The preferences are only decoded again when
+ * pub_key or priv_key change, everybody else just reads the current snapshot.
+ */
+class KeyMaterial {
+    private static KeyMaterial instance = null;
+
+    private static class Snapshot {
+        final KeyRing keyRing;
+        final CryptoManager.PreparedSigner signer;
+
+        Snapshot(KeyRing keyRing, CryptoManager.PreparedSigner signer) {
+            this.keyRing = keyRing;
+            this.signer = signer;
+        }
+    }
+
+    private final SharedPreferences prefs;
+    private volatile Snapshot snapshot;
+
+    // SharedPreferences only keeps a weak reference to its listeners.
+    private final SharedPreferences.OnSharedPreferenceChangeListener prefListener = (p, key) -> {
+        if ("pub_key".equals(key) || "priv_key".equals(key))
+            reload();
+    };
+
+    private KeyMaterial(Context ctx) {
+        prefs = PreferenceManager.getDefaultSharedPreferences(ctx);
+        reload();
+        prefs.registerOnSharedPreferenceChangeListener(prefListener);
+    }
+
+    public static synchronized KeyMaterial getInstance(Context ctx) {
+        if (instance == null)
+            instance = new KeyMaterial(ctx.getApplicationContext());
+        return instance;
+    }
+
+    public void applyTo(TagManager tagManager) {
+        Snapshot s = snapshot;
+        tagManager.setKeyRing(s.keyRing);
+        tagManager.setSigner(s.signer);
+    }
+
+    public CryptoManager.PreparedSigner getSigner() {
+        return snapshot.signer;
+    }
+
+    private synchronized void reload() {
+        KeyRing keyRing = null;
+        CryptoManager.PreparedSigner signer = null;
+
+        String pk = prefs.getString("pub_key", null);
+        if (pk != null && pk.length() != 0)
+            keyRing = KeyRing.parse(pk);
+
+        // A broken key has to fail signing, not silently produce unsigned tags.
+        String sk = prefs.getString("priv_key", null);
+        if (sk != null && sk.length() != 0) {
+            try {
+                signer = new CryptoManager.PreparedSigner(Base64.decode(sk, Base64.DEFAULT));
+            } catch (IllegalArgumentException e) {
+                signer = new CryptoManager.PreparedSigner(new byte[0]);
+            }
+        }
+
+        snapshot = new Snapshot(keyRing, signer);
+    }
+}
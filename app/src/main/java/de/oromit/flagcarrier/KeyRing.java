@@ -0,0 +1,82 @@
+package de.oromit.flagcarrier;
+
+import android.util.Base64;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Set of trusted public keys. A tag that names its signing key by key id needs one lookup and
+ * one signature check, any other tag is tried against every key in the order they were
+ * configured.
+ */
+class KeyRing {
+    private final List<CryptoManager.PreparedVerifier> verifiers = new ArrayList<>();
+    private final Map<Integer, CryptoManager.PreparedVerifier> byKeyId = new HashMap<>();
+    private final byte[] fingerprint;
+
+    public KeyRing(List<byte[]> keys) {
+        byte[] fp = new byte[keys.size() * CryptoManager.PUBLIC_KEY_SIZE];
+        int pos = 0;
+
+        for (byte[] key : keys) {
+            CryptoManager.PreparedVerifier verifier = new CryptoManager.PreparedVerifier(key);
+            verifiers.add(verifier);
+
+            if (verifier.getPublicKey() != null) {
+                byKeyId.put(verifier.getKeyId(), verifier);
+                System.arraycopy(key, 0, fp, pos, key.length);
+                pos += key.length;
+            }
+        }
+
+        fingerprint = Arrays.copyOf(fp, pos);
+    }
+
+    /**
+     * Parses the pub_key setting, one or more Base64 keys separated by commas.
+     */
+    public static KeyRing parse(String keys) {
+        List<byte[]> res = new ArrayList<>();
+
+        for (String k : keys.split(",")) {
+            k = k.trim();
+            if (k.isEmpty())
+                continue;
+
+            // Kept as an invalid key so verification fails instead of being skipped.
+            try {
+                res.add(Base64.decode(k, Base64.DEFAULT));
+            } catch (IllegalArgumentException e) {
+                res.add(new byte[0]);
+            }
+        }
+
+        return new KeyRing(res);
+    }
+
+    public static KeyRing of(byte[] key) {
+        return new KeyRing(Collections.singletonList(key));
+    }
+
+    public boolean isEmpty() {
+        return verifiers.isEmpty();
+    }
+
+    public CryptoManager.PreparedVerifier forKeyId(int keyId) {
+        return byKeyId.get(keyId);
+    }
+
+    public List<CryptoManager.PreparedVerifier> getVerifiers() {
+        return Collections.unmodifiableList(verifiers);
+    }
+
+    // Identifies the set of keys, used to keep cached verification results apart.
+    public byte[] getFingerprint() {
+        return fingerprint;
+    }
+}
@@ -39,6 +39,7 @@ public class LoginActivity extends AppCompatActivity implements Callback {
         mHttpManager = new HttpManager(this, this);
 
         mTagManager = new TagManager();
+        mTagManager.setCache(TagCache.getInstance(this));
 
         populateButtons();
         parseIntent();
@@ -105,8 +106,10 @@ public class LoginActivity extends AppCompatActivity implements Callback {
                 mTagManager.setExtraSignData(null);
                 mTagManager.setPublicKey(null);
                 mTagManager.setPrivateKey(null);
+                mTagManager.close();
             }
-        } else if("de.oromit.flagcarrier.ManualLoginActivity.Login".equals(intent.getAction())) {
+        } else if("de.oromit.flagcarrier.ManualLoginActivity.Login".equals(intent.getAction())
+                || HCEReader.ACTION_LOGIN.equals(intent.getAction())) {
             @SuppressWarnings("unchecked")
             HashMap<String, String> intentData = (HashMap)intent.getSerializableExtra("MANUAL_TAG_LOGIN_DATA");
 
@@ -1,13 +1,21 @@
 package de.oromit.flagcarrier;
 
+import android.app.PendingIntent;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
+import android.nfc.NdefMessage;
+import android.nfc.NfcAdapter;
+import android.nfc.Tag;
+import android.nfc.tech.IsoDep;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.provider.Settings;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
@@ -16,6 +24,8 @@ import android.widget.Button;
 import android.widget.Toast;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 
 import okhttp3.Call;
 import okhttp3.Callback;
@@ -23,7 +33,13 @@ import okhttp3.Response;
 import okhttp3.ResponseBody;
 
 public class MainActivity extends AppCompatActivity implements Callback {
+    private static final String TAG = "MainActivity";
+
+    private static final int READER_FLAGS = NfcAdapter.FLAG_READER_NFC_A | NfcAdapter.FLAG_READER_NFC_B
+            | NfcAdapter.FLAG_READER_SKIP_NDEF_CHECK;
+
     private HttpManager httpManager;
+    private NfcAdapter nfcAdapter;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -33,6 +49,7 @@ public class MainActivity extends AppCompatActivity implements Callback {
         PreferenceManager.setDefaultValues(this, R.xml.preferences, false);
 
         httpManager = new HttpManager(this, this);
+        nfcAdapter = NfcAdapter.getDefaultAdapter(this);
 
         Button clearButton = findViewById(R.id.clearButton);
         clearButton.setOnClickListener(v->onClear());
@@ -66,6 +83,9 @@ public class MainActivity extends AppCompatActivity implements Callback {
             case R.id.write_tag_item:
                 showWriteTag();
                 return true;
+            case R.id.audit_item:
+                startActivity(new Intent(this, AuditActivity.class));
+                return true;
             default:
                 return super.onOptionsItemSelected(item);
         }
@@ -84,16 +104,139 @@ public class MainActivity extends AppCompatActivity implements Callback {
     @Override
     protected void onNewIntent(Intent intent) {
         super.onNewIntent(intent);
+
+        if (!NfcAdapter.ACTION_TECH_DISCOVERED.equals(intent.getAction()))
+            return;
+
+        // ISO-DEP tags with NDEF on them go the usual way, everything else may be a phone
+        // running HCEService.
+        if (intent.hasExtra(NfcAdapter.EXTRA_NDEF_MESSAGES)) {
+            intent.setClass(this, LoginActivity.class);
+            intent.setAction(NfcAdapter.ACTION_NDEF_DISCOVERED);
+            startActivity(intent);
+            return;
+        }
+
+        Tag tag = intent.getParcelableExtra(NfcAdapter.EXTRA_TAG);
+        if (tag != null)
+            readHCE(tag);
     }
 
     @Override
     protected void onResume() {
         super.onResume();
+
+        if (nfcAdapter == null)
+            return;
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        if (prefs.getBoolean("fast_tag_read", false)) {
+            nfcAdapter.enableReaderMode(this, this::onTagDiscovered, READER_FLAGS, null);
+            return;
+        }
+
+        PendingIntent pendingIntent = PendingIntent.getActivity(this, 0,
+                new Intent(this, getClass()).addFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP), 0);
+        IntentFilter[] filters = new IntentFilter[] { new IntentFilter(NfcAdapter.ACTION_TECH_DISCOVERED) };
+        String[][] techLists = new String[][] { new String[] { IsoDep.class.getName() } };
+        nfcAdapter.enableForegroundDispatch(this, pendingIntent, filters, techLists);
     }
 
     @Override
     protected void onPause() {
         super.onPause();
+
+        if (nfcAdapter != null) {
+            nfcAdapter.disableForegroundDispatch(this);
+            nfcAdapter.disableReaderMode(this);
+        }
+    }
+
+    // Reader mode skips the framework's NDEF check, Type 2 tags are read directly and
+    // ISO-DEP is taken for a phone running HCEService. Other tags need the normal mode.
+    private void onTagDiscovered(Tag tag) {
+        long tapTime = SystemClock.elapsedRealtime();
+
+        MifareUltralightTransport transport = MifareUltralightTransport.get(tag);
+        if (transport == null) {
+            if (IsoDep.get(tag) != null)
+                readHCE(tag);
+            else
+                runOnUiThread(() -> Toast.makeText(this, "Can't handle this tag", Toast.LENGTH_LONG).show());
+            return;
+        }
+
+        Type2Reader reader = new Type2Reader();
+
+        try {
+            transport.connect();
+            NdefMessage msg = reader.read(transport);
+
+            if (BuildConfig.DEBUG)
+                Log.d(TAG, "Tap to Ndef message: " + (SystemClock.elapsedRealtime() - tapTime) + " ms, "
+                        + reader.getLastCommands() + " commands");
+
+            runOnUiThread(() -> showTagLogin(tag, msg));
+        } catch(TagManager.TagManagerException e) {
+            runOnUiThread(() -> Toast.makeText(this, e.getMessage(), Toast.LENGTH_LONG).show());
+        } catch(IOException e) {
+            runOnUiThread(() -> Toast.makeText(this, "Tag IO failed: " + e.getMessage(), Toast.LENGTH_LONG).show());
+        } finally {
+            try {
+                transport.close();
+            } catch(IOException ignored) {
+            }
+        }
+    }
+
+    private void showTagLogin(Tag tag, NdefMessage msg) {
+        Intent intent = new Intent(this, LoginActivity.class);
+        intent.setAction(NfcAdapter.ACTION_NDEF_DISCOVERED);
+        intent.putExtra(NfcAdapter.EXTRA_TAG, tag);
+        intent.putExtra(NfcAdapter.EXTRA_NDEF_MESSAGES, new NdefMessage[] { msg });
+        startActivity(intent);
+    }
+
+    private void readHCE(Tag tag) {
+        long tapTime = SystemClock.elapsedRealtime();
+
+        IsoDepTransport transport = IsoDepTransport.get(tag);
+        if (transport == null)
+            return;
+
+        new Thread(() -> {
+            TagManager tagManager = new TagManager();
+            tagManager.loadKeysFromPrefs(this);
+            HCEReader reader = new HCEReader(tagManager);
+
+            try {
+                transport.connect();
+                Map<String, String> data = reader.read(transport);
+
+                if (BuildConfig.DEBUG)
+                    Log.d(TAG, "Tap to verified profile: " + (SystemClock.elapsedRealtime() - tapTime) + " ms, "
+                            + reader.getLastExchanges() + " exchanges in " + reader.getLastDurationMillis() + " ms");
+
+                runOnUiThread(() -> showLogin(data));
+            } catch(TagManager.TagManagerException e) {
+                runOnUiThread(() -> Toast.makeText(this, e.getMessage(), Toast.LENGTH_LONG).show());
+            } catch(IOException e) {
+                runOnUiThread(() -> Toast.makeText(this, "Card IO failed: " + e.getMessage(), Toast.LENGTH_LONG).show());
+            } finally {
+                tagManager.close();
+                try {
+                    transport.close();
+                } catch(IOException ignored) {
+                }
+            }
+        }).start();
+    }
+
+    private void showLogin(Map<String, String> data) {
+        Intent intent = new Intent(this, LoginActivity.class);
+        intent.setAction(HCEReader.ACTION_LOGIN);
+        intent.putExtra("MANUAL_TAG_LOGIN_DATA", new HashMap<>(data));
+        startActivity(intent);
     }
 
     private void onClear() {
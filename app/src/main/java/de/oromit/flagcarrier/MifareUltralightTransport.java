@@ -0,0 +1,46 @@
+package de.oromit.flagcarrier;
+
+import android.nfc.Tag;
+import android.nfc.tech.MifareUltralight;
+
+import java.io.IOException;
+
+class MifareUltralightTransport implements Type2Reader.Transport {
+    private final MifareUltralight tag;
+
+    private MifareUltralightTransport(MifareUltralight tag) {
+        this.tag = tag;
+    }
+
+    // Returns null for anything but Type 2 tags.
+    public static MifareUltralightTransport get(Tag tag) {
+        MifareUltralight ul = MifareUltralight.get(tag);
+        return ul != null ? new MifareUltralightTransport(ul) : null;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        tag.connect();
+    }
+
+    @Override
+    public byte[] transceive(byte[] cmd) throws IOException {
+        return tag.transceive(cmd);
+    }
+
+    @Override
+    public int getMaxTransceiveLength() {
+        return tag.getMaxTransceiveLength();
+    }
+
+    @Override
+    public void reconnect() throws IOException {
+        tag.close();
+        tag.connect();
+    }
+
+    @Override
+    public void close() throws IOException {
+        tag.close();
+    }
+}
@@ -0,0 +1,67 @@
+package de.oromit.flagcarrier;
+
+import android.nfc.FormatException;
+import android.nfc.NdefMessage;
+import android.nfc.Tag;
+import android.nfc.tech.NdefFormatable;
+
+import java.io.IOException;
+
+/**
+ * Blank tag, writing formats it with the message as initial content. Reading back needs an
+ * Ndef connection, so the next tap, locking is only possible as part of formatting.
+ */
+class NdefFormatableTransport implements TagTransport {
+    private final NdefFormatable ndef;
+
+    private NdefFormatableTransport(NdefFormatable ndef) {
+        this.ndef = ndef;
+    }
+
+    // Returns null if the tag can't be formatted for NDEF.
+    public static NdefFormatableTransport get(Tag tag) {
+        NdefFormatable ndef = NdefFormatable.get(tag);
+        return ndef != null ? new NdefFormatableTransport(ndef) : null;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        ndef.connect();
+    }
+
+    @Override
+    public boolean isWritable() {
+        return true;
+    }
+
+    @Override
+    public int getMaxSize() {
+        return -1;
+    }
+
+    @Override
+    public boolean writeNdefMessage(NdefMessage msg, byte[] encoded, boolean makeReadOnly) throws IOException, FormatException {
+        if (makeReadOnly) {
+            ndef.formatReadOnly(msg);
+            return true;
+        }
+        ndef.format(msg);
+        return false;
+    }
+
+    @Override
+    public byte[] readNdefMessage() {
+        return null;
+    }
+
+    // Too late once formatted, writeNdefMessage locks if asked.
+    @Override
+    public boolean makeReadOnly() {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        ndef.close();
+    }
+}
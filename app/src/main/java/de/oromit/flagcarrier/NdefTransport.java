@@ -0,0 +1,59 @@
+package de.oromit.flagcarrier;
+
+import android.nfc.FormatException;
+import android.nfc.NdefMessage;
+import android.nfc.Tag;
+import android.nfc.tech.Ndef;
+
+import java.io.IOException;
+
+class NdefTransport implements TagTransport {
+    private final Ndef ndef;
+
+    private NdefTransport(Ndef ndef) {
+        this.ndef = ndef;
+    }
+
+    // Returns null if the tag isn't NDEF formatted.
+    public static NdefTransport get(Tag tag) {
+        Ndef ndef = Ndef.get(tag);
+        return ndef != null ? new NdefTransport(ndef) : null;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        ndef.connect();
+    }
+
+    @Override
+    public boolean isWritable() {
+        return ndef.isWritable();
+    }
+
+    @Override
+    public int getMaxSize() {
+        return ndef.getMaxSize();
+    }
+
+    @Override
+    public boolean writeNdefMessage(NdefMessage msg, byte[] encoded, boolean makeReadOnly) throws IOException, FormatException {
+        ndef.writeNdefMessage(msg);
+        return false;
+    }
+
+    @Override
+    public byte[] readNdefMessage() throws IOException, FormatException {
+        NdefMessage msg = ndef.getNdefMessage();
+        return msg != null ? msg.toByteArray() : new byte[0];
+    }
+
+    @Override
+    public boolean makeReadOnly() throws IOException {
+        return ndef.canMakeReadOnly() && ndef.makeReadOnly();
+    }
+
+    @Override
+    public void close() throws IOException {
+        ndef.close();
+    }
+}
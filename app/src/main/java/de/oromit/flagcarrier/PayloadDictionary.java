@@ -0,0 +1,80 @@
+package de.oromit.flagcarrier;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Versioned preset DEFLATE dictionaries for the tag payload, CODEC_DICT payloads name theirs
+ * by its version. Published dictionaries must never change, add a new version instead.
+ */
+class PayloadDictionary {
+    private static final Map<Integer, PayloadDictionary> versions = new HashMap<>();
+
+    // Entries used less often go first, DEFLATE reaches the end of the dictionary cheapest.
+    // Registered keys are a single id byte in the v2 data format, so only extra keys appear.
+    public static final PayloadDictionary V2 = register(2, encodeV2Entries(
+            new String[] { "set", "target_url", "pos_avail", "device_id", "group_id" },
+            new String[] { "https://", "left,mid,right" },
+            new String[] { "US", "GB", "FR", "NL", "SE", "DE" }
+    ));
+
+    public static final PayloadDictionary CURRENT = V2;
+
+    public final int version;
+    private final byte[] data;
+
+    private PayloadDictionary(int version, byte[] data) {
+        this.version = version;
+        this.data = data;
+    }
+
+    public static PayloadDictionary forVersion(int version) {
+        return versions.get(version);
+    }
+
+    public void applyTo(Deflater deflater) {
+        deflater.setDictionary(data);
+    }
+
+    public void applyTo(Inflater inflater) {
+        inflater.setDictionary(data);
+    }
+
+    private static PayloadDictionary register(int version, byte[] data) {
+        PayloadDictionary dict = new PayloadDictionary(version, data);
+        versions.put(dict.version, dict);
+        return dict;
+    }
+
+    private static byte[] encodeV2Entries(String[] extraKeys, String[] values, String[] countryCodes) {
+        byte[] res = new byte[1024];
+        int pos = 0;
+
+        for (String k : extraKeys) {
+            res[pos++] = PayloadFormat.KEY_EXTRA;
+            res[pos++] = (byte)k.length();
+            pos = PayloadFormat.writeUTF8(res, pos, k);
+        }
+
+        for (String v : values) {
+            res[pos++] = (byte)v.length();
+            pos = PayloadFormat.writeUTF8(res, pos, v);
+        }
+
+        int countryId = PayloadFormat.keyId("country_code");
+        for (String c : countryCodes) {
+            res[pos++] = (byte)countryId;
+            res[pos++] = (byte)c.length();
+            pos = PayloadFormat.writeUTF8(res, pos, c);
+        }
+
+        // Every data block starts like this, the signature lives in the header in front of it.
+        res[pos++] = PayloadFormat.DATA_V2;
+        res[pos++] = (byte)PayloadFormat.keyId("display_name");
+
+        return Arrays.copyOf(res, pos);
+    }
+}
@@ -0,0 +1,162 @@
+package de.oromit.flagcarrier;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Reusable encoder for the tag payload. Entries are written in the v2 data format into a pooled
+ * buffer and stored or deflated, whichever comes out smallest. The result goes straight into a
+ * frame buffer that keeps room in front for the signature header, so signing needs no copy.
+ * The native zlib state is only set up once something is deflated and is freed by end.
+ * Not thread safe, every TagManager owns its own instance.
+ */
+class PayloadEncoder {
+    private static final int KEY_ID_OFFSET = 1 + CryptoManager.SIGNATURE_SIZE;
+
+    private Deflater deflater = null;
+
+    private byte[] buf = new byte[512];
+    private byte[] out = new byte[512];
+    private byte[] best = new byte[512];
+    private byte[] frame = new byte[512];
+    private int pos = 0;
+
+    public byte[] encode(Map<String, String> kvMap, CryptoManager.PreparedSigner signer, byte[] extraSignData) throws TagManager.TagManagerException {
+        pos = 0;
+        ensureCapacity(1);
+        buf[pos++] = PayloadFormat.DATA_V2;
+
+        for (Map.Entry<String, String> entry : kvMap.entrySet()) {
+            String k = entry.getKey().trim();
+            String v = entry.getValue().trim();
+            if(v.isEmpty())
+                continue;
+            writeEntry(k, v);
+        }
+
+        int headroom = PayloadFormat.SIGNED_HEADER_SIZE;
+        int end = headroom + pack(0, pos, headroom);
+
+        if (signer == null)
+            return Arrays.copyOfRange(frame, headroom, end);
+
+        frame[0] = (byte)PayloadFormat.PAYLOAD_SIGNED;
+        PayloadFormat.writeInt(frame, KEY_ID_OFFSET, signer.getKeyId());
+
+        int signedLen = end - KEY_ID_OFFSET;
+        if (extraSignData != null) {
+            ensureFrameCapacity(end + extraSignData.length);
+            System.arraycopy(extraSignData, 0, frame, end, extraSignData.length);
+            signedLen += extraSignData.length;
+        }
+
+        try {
+            signer.sign(frame, KEY_ID_OFFSET, signedLen, frame, 1);
+        } catch(CryptoManager.CryptoManagerException e) {
+            throw new TagManager.TagManagerException("Crypto signing error: " + e.getMessage());
+        }
+
+        return Arrays.copyOf(frame, end);
+    }
+
+    // Frees the Deflater right away instead of leaving it to finalization, encode sets up a new one.
+    public void end() {
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+    }
+
+    // Short profiles often come out larger after DEFLATE, so try every codec and keep the smallest.
+    // The result is written to frame at frameOff, its length returned.
+    private int pack(int off, int len, int frameOff) {
+        int codec = PayloadFormat.CODEC_STORED;
+        int bestLen = len;
+
+        int n = deflate(off, len, null);
+        if (n < bestLen) {
+            codec = PayloadFormat.CODEC_DEFLATE;
+            bestLen = n;
+            swapOut();
+        }
+
+        PayloadDictionary dict = PayloadDictionary.CURRENT;
+        n = deflate(off, len, dict);
+        if (n + 1 < bestLen) {
+            codec = PayloadFormat.CODEC_DICT;
+            bestLen = n + 1;
+            swapOut();
+        }
+
+        ensureFrameCapacity(frameOff + 1 + bestLen);
+        frame[frameOff] = (byte)(PayloadFormat.PAYLOAD_MARKER | codec);
+
+        switch (codec) {
+            case PayloadFormat.CODEC_STORED:
+                System.arraycopy(buf, off, frame, frameOff + 1, len);
+                break;
+            case PayloadFormat.CODEC_DEFLATE:
+                System.arraycopy(best, 0, frame, frameOff + 1, bestLen);
+                break;
+            case PayloadFormat.CODEC_DICT:
+                frame[frameOff + 1] = (byte)dict.version;
+                System.arraycopy(best, 0, frame, frameOff + 2, bestLen - 1);
+                break;
+        }
+
+        return 1 + bestLen;
+    }
+
+    private int deflate(int off, int len, PayloadDictionary dict) {
+        if (deflater == null)
+            deflater = new Deflater(9, true);
+
+        deflater.reset();
+        if (dict != null)
+            dict.applyTo(deflater);
+        deflater.setInput(buf, off, len);
+        deflater.finish();
+
+        int n = 0;
+        while(!deflater.finished()) {
+            if (n == out.length)
+                out = Arrays.copyOf(out, out.length * 2);
+            n += deflater.deflate(out, n, out.length - n);
+        }
+
+        return n;
+    }
+
+    private void swapOut() {
+        byte[] tmp = best;
+        best = out;
+        out = tmp;
+    }
+
+    private void ensureFrameCapacity(int size) {
+        if (size > frame.length)
+            frame = Arrays.copyOf(frame, Math.max(frame.length * 2, size));
+    }
+
+    private void ensureCapacity(int extra) {
+        if (pos + extra > buf.length)
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + extra));
+    }
+
+    private void writeEntry(String key, String value) {
+        int id = PayloadFormat.keyId(key);
+        int klen = id == PayloadFormat.KEY_EXTRA ? PayloadFormat.utf8Length(key) : 0;
+        int vlen = PayloadFormat.utf8Length(value);
+
+        ensureCapacity(5 + 5 + klen + 5 + vlen);
+
+        pos = PayloadFormat.writeVarint(buf, pos, id);
+        if (id == PayloadFormat.KEY_EXTRA) {
+            pos = PayloadFormat.writeVarint(buf, pos, klen);
+            pos = PayloadFormat.writeUTF8(buf, pos, key);
+        }
+        pos = PayloadFormat.writeVarint(buf, pos, vlen);
+        pos = PayloadFormat.writeUTF8(buf, pos, value);
+    }
+}
@@ -0,0 +1,149 @@
+package de.oromit.flagcarrier;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Constants and write helpers for the tag payload.
+ *
+ * A payload is either a bare zlib stream (legacy) or starts with PAYLOAD_MARKER | codec. A zlib
+ * stream always has 8 in the low nibble of its first byte, the codec byte never does.
+ * CODEC_STORED is followed by the data as is, CODEC_DEFLATE by raw DEFLATE data and
+ * CODEC_DICT by the dictionary version and raw DEFLATE data using that preset dictionary.
+ *
+ * The data inside comes in two versions. v1 is a plain sequence of writeUTF(key),
+ * writeUTF(value) pairs. v2 starts with DATA_V2 and stores each entry as varint(key id),
+ * [varint(length), UTF-8 key if the id is KEY_EXTRA], varint(length), UTF-8 value. A v1 tag
+ * would need a first key of 61952+ bytes to start with DATA_V2, so the first byte tells the
+ * two apart.
+ *
+ * Signed payloads start with PAYLOAD_SIGNED, the raw 64 byte signature and the 4 byte key id
+ * (big endian), followed by the unsigned payload as described above. The signature covers
+ * everything from the key id to the end of the payload plus the extra sign data, so it is
+ * checked on the compressed bytes and stays out of the DEFLATE input.
+ *
+ * Older tags carry the signature inside the data instead, as a Base64 "sig" first entry
+ * covering the rest of the data. They carry no key id.
+ */
+class PayloadFormat {
+    public static final int PAYLOAD_MARKER = 0xC0;
+    public static final int PAYLOAD_SIGNED = 0xE0;
+    public static final int SIGNED_HEADER_SIZE = 1 + CryptoManager.SIGNATURE_SIZE + 4;
+    public static final int CODEC_STORED = 0;
+    public static final int CODEC_DEFLATE = 1;
+    public static final int CODEC_DICT = 2;
+
+    public static final byte DATA_V2 = (byte)0xF2;
+
+    public static final int KEY_EXTRA = 0;
+    public static final int KEY_SIG = 1;
+
+    // Ids are part of the wire format, only ever append to this list.
+    private static final String[] KEYS = new String[] {
+            null,
+            "sig",
+            "display_name",
+            "country_code",
+            "speedruncom_name",
+            "twitch_name",
+            "twitter_handle"
+    };
+
+    private static final Map<String, Integer> keyIds = new HashMap<>();
+
+    static {
+        for (int i = 1; i < KEYS.length; ++i)
+            keyIds.put(KEYS[i], i);
+    }
+
+    public static int keyId(String key) {
+        Integer id = keyIds.get(key);
+        return id == null ? KEY_EXTRA : id;
+    }
+
+    public static String keyName(int id) {
+        if (id <= KEY_EXTRA || id >= KEYS.length)
+            return null;
+        return KEYS[id];
+    }
+
+    public static int readInt(byte[] b, int pos) {
+        return ((b[pos] & 0xFF) << 24) | ((b[pos + 1] & 0xFF) << 16) | ((b[pos + 2] & 0xFF) << 8) | (b[pos + 3] & 0xFF);
+    }
+
+    public static int writeInt(byte[] b, int pos, int v) {
+        b[pos++] = (byte)(v >>> 24);
+        b[pos++] = (byte)(v >>> 16);
+        b[pos++] = (byte)(v >>> 8);
+        b[pos++] = (byte)v;
+        return pos;
+    }
+
+    public static int varintSize(int v) {
+        int n = 1;
+        while ((v >>>= 7) != 0)
+            ++n;
+        return n;
+    }
+
+    public static int writeVarint(byte[] b, int pos, int v) {
+        while ((v & ~0x7F) != 0) {
+            b[pos++] = (byte)((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        b[pos++] = (byte)v;
+        return pos;
+    }
+
+    // Unpaired surrogates count as one byte, String.getBytes would replace them with '?'.
+    public static int utf8Length(String s) {
+        int strlen = s.length();
+        int len = 0;
+
+        for (int i = 0; i < strlen; ++i) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                len += 1;
+            } else if (c < 0x800) {
+                len += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < strlen && Character.isLowSurrogate(s.charAt(i + 1))) {
+                len += 4;
+                ++i;
+            } else if (Character.isSurrogate(c)) {
+                len += 1;
+            } else {
+                len += 3;
+            }
+        }
+
+        return len;
+    }
+
+    public static int writeUTF8(byte[] b, int pos, String s) {
+        int strlen = s.length();
+
+        for (int i = 0; i < strlen; ++i) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                b[pos++] = (byte)c;
+            } else if (c < 0x800) {
+                b[pos++] = (byte)(0xC0 | (c >> 6));
+                b[pos++] = (byte)(0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < strlen && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                b[pos++] = (byte)(0xF0 | (cp >> 18));
+                b[pos++] = (byte)(0x80 | ((cp >> 12) & 0x3F));
+                b[pos++] = (byte)(0x80 | ((cp >> 6) & 0x3F));
+                b[pos++] = (byte)(0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                b[pos++] = '?';
+            } else {
+                b[pos++] = (byte)(0xE0 | (c >> 12));
+                b[pos++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+                b[pos++] = (byte)(0x80 | (c & 0x3F));
+            }
+        }
+
+        return pos;
+    }
+}
@@ -0,0 +1,115 @@
+package de.oromit.flagcarrier;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reusable, bounded inflater for tag payloads. Output is capped at maxSize and the stream is
+ * rejected as soon as the Inflater stops making progress, so truncated or crafted payloads
+ * fail fast instead of spinning or eating memory. The native zlib state is only set up on the
+ * first inflate and freed by end. Not thread safe.
+ */
+class PayloadInflater {
+    public static final int DEFAULT_MAX_SIZE = 32 * 1024;
+
+    // Typical profiles inflate to two to four times their compressed size.
+    private static final int SIZE_HINT_FACTOR = 4;
+    private static final int MIN_BUFFER_SIZE = 256;
+
+    private Inflater zlibInflater = null;
+    private Inflater rawInflater = null;
+
+    private int maxSize;
+    private byte[] buf = new byte[MIN_BUFFER_SIZE];
+
+    public PayloadInflater() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    public PayloadInflater(int maxSize) {
+        setMaxSize(maxSize);
+    }
+
+    public void setMaxSize(int maxSize) {
+        if (maxSize <= 0)
+            throw new IllegalArgumentException("maxSize must be positive");
+        this.maxSize = maxSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    // Frees the Inflaters right away instead of leaving them to finalization.
+    public void end() {
+        if (zlibInflater != null) {
+            zlibInflater.end();
+            zlibInflater = null;
+        }
+        if (rawInflater != null) {
+            rawInflater.end();
+            rawInflater = null;
+        }
+    }
+
+    private Inflater getInflater(boolean nowrap) {
+        if (nowrap) {
+            if (rawInflater == null)
+                rawInflater = new Inflater(true);
+            return rawInflater;
+        }
+
+        if (zlibInflater == null)
+            zlibInflater = new Inflater();
+        return zlibInflater;
+    }
+
+    /**
+     * Returns the inflated data followed by tailRoom spare bytes the caller may use freely.
+     */
+    public byte[] inflate(byte[] payload, int off, boolean nowrap, PayloadDictionary dict, int tailRoom) throws TagManager.TagManagerException {
+        Inflater infl = getInflater(nowrap);
+        infl.reset();
+
+        int len = payload.length - off;
+        int hint = Math.min(maxSize, Math.max(MIN_BUFFER_SIZE, len * SIZE_HINT_FACTOR));
+        if (buf.length < hint)
+            buf = new byte[hint];
+
+        int n = 0;
+
+        try {
+            infl.setInput(payload, off, len);
+            if (dict != null)
+                dict.applyTo(infl);
+
+            while (!infl.finished()) {
+                if (n == buf.length) {
+                    if (n >= maxSize)
+                        throw new TagManager.TagManagerException("Tag data exceeds " + maxSize + " bytes");
+                    buf = Arrays.copyOf(buf, (int)Math.min(maxSize, buf.length * 2L));
+                }
+
+                int r = infl.inflate(buf, n, buf.length - n);
+                if (r > 0) {
+                    n += r;
+                    continue;
+                }
+
+                // Legacy zlib payloads never used a preset dictionary.
+                if (infl.needsDictionary()) {
+                    throw new TagManager.TagManagerException("Unknown payload dictionary");
+                } else if (infl.needsInput()) {
+                    throw new TagManager.TagManagerException("Incomplete data on tag");
+                } else if (!infl.finished()) {
+                    throw new TagManager.TagManagerException("Malformed deflate data");
+                }
+            }
+        } catch (DataFormatException | IllegalArgumentException e) {
+            throw new TagManager.TagManagerException("Malformed deflate data");
+        }
+
+        return Arrays.copyOf(buf, n + tailRoom);
+    }
+}
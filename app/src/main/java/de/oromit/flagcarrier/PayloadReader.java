@@ -0,0 +1,107 @@
+package de.oromit.flagcarrier;
+
+/**
+ * Single pass cursor over inflated tag data, understands both the v1 and the v2 entry encoding.
+ */
+class PayloadReader {
+    private final byte[] data;
+    private final int end;
+    private int pos;
+
+    public PayloadReader(byte[] data, int off, int len) {
+        this.data = data;
+        this.pos = off;
+        this.end = off + len;
+    }
+
+    public boolean hasRemaining() {
+        return pos < end;
+    }
+
+    public int position() {
+        return pos;
+    }
+
+    public int readByte() throws TagManager.TagManagerException {
+        if (pos >= end)
+            throw new TagManager.TagManagerException("Incomplete data on tag");
+        return data[pos++] & 0xFF;
+    }
+
+    public int readVarint() throws TagManager.TagManagerException {
+        int res = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = readByte();
+            res |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return res;
+        }
+        throw new TagManager.TagManagerException("Malformed data on tag");
+    }
+
+    // Returns the offset of a length prefixed field and skips over it.
+    public int skipField(int len) throws TagManager.TagManagerException {
+        if (len < 0 || len > end - pos)
+            throw new TagManager.TagManagerException("Incomplete data on tag");
+        int off = pos;
+        pos += len;
+        return off;
+    }
+
+    // Checks what decodeModifiedUTF8 would reject, without building the string.
+    public static void checkModifiedUTF8(byte[] b, int off, int len) throws TagManager.TagManagerException {
+        int end = off + len;
+
+        while (off < end) {
+            int c = b[off] & 0xFF;
+            int n;
+
+            if (c < 0x80)
+                n = 1;
+            else if ((c & 0xE0) == 0xC0)
+                n = 2;
+            else if ((c & 0xF0) == 0xE0)
+                n = 3;
+            else
+                throw new TagManager.TagManagerException("Malformed data on tag");
+
+            if (off + n > end)
+                throw new TagManager.TagManagerException("Malformed data on tag");
+            for (int i = 1; i < n; ++i)
+                if ((b[off + i] & 0xC0) != 0x80)
+                    throw new TagManager.TagManagerException("Malformed data on tag");
+
+            off += n;
+        }
+    }
+
+    // Same rules as DataInputStream.readUTF, without the intermediate copies.
+    public static String decodeModifiedUTF8(byte[] b, int off, int len) throws TagManager.TagManagerException {
+        char[] chars = new char[len];
+        int n = 0;
+        int end = off + len;
+
+        while (off < end) {
+            int c = b[off] & 0xFF;
+
+            if (c < 0x80) {
+                chars[n++] = (char)c;
+                off += 1;
+            } else if ((c & 0xE0) == 0xC0) {
+                if (off + 2 > end || (b[off + 1] & 0xC0) != 0x80)
+                    throw new TagManager.TagManagerException("Malformed data on tag");
+                chars[n++] = (char)(((c & 0x1F) << 6) | (b[off + 1] & 0x3F));
+                off += 2;
+            } else if ((c & 0xF0) == 0xE0) {
+                if (off + 3 > end || (b[off + 1] & 0xC0) != 0x80 || (b[off + 2] & 0xC0) != 0x80)
+                    throw new TagManager.TagManagerException("Malformed data on tag");
+                chars[n++] = (char)(((c & 0x0F) << 12) | ((b[off + 1] & 0x3F) << 6) | (b[off + 2] & 0x3F));
+                off += 3;
+            } else {
+                throw new TagManager.TagManagerException("Malformed data on tag");
+            }
+        }
+
+        return new String(chars, 0, n);
+    }
+}
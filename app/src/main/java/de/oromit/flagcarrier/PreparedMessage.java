@@ -0,0 +1,114 @@
+package de.oromit.flagcarrier;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Tag message that is encoded and compressed once and only signed per use. The signature is
+ * the only part that depends on the extra sign data, so the NDEF bytes are built once per
+ * signing key and every sign call writes the new signature straight into them.
+ * prepare and sign may run on any thread, sign reuses the returned buffer.
+ */
+class PreparedMessage {
+    private static final int KEY_ID_OFFSET = 1 + CryptoManager.SIGNATURE_SIZE;
+
+    // Messages are encoded on the few threads that publish or serve them, each reuses its encoder.
+    private static final ThreadLocal<PayloadEncoder> encoders = new ThreadLocal<>();
+
+    private final Map<String, String> data;
+    private byte[] payload = null;
+
+    private boolean built = false;
+    private CryptoManager.PreparedSigner signer = null;
+    private byte[] ndef = null;
+    private int sigOff = 0;
+    private byte[] signBuf = null;
+    private int signLen = 0;
+
+    /**
+     * Encoding is deferred until prepare or the first sign call.
+     */
+    public PreparedMessage(Map<String, String> data) {
+        this.data = new LinkedHashMap<>(data);
+    }
+
+    public static PreparedMessage encode(Map<String, String> data) throws TagManager.TagManagerException {
+        PreparedMessage msg = new PreparedMessage(data);
+        msg.prepare();
+        return msg;
+    }
+
+    public synchronized void prepare() throws TagManager.TagManagerException {
+        if (payload == null)
+            payload = getEncoder().encode(data, null, null);
+    }
+
+    private static PayloadEncoder getEncoder() {
+        PayloadEncoder encoder = encoders.get();
+        if (encoder == null) {
+            encoder = new PayloadEncoder();
+            encoders.set(encoder);
+        }
+        return encoder;
+    }
+
+    // Frees the calling thread's encoder, for threads that go away or won't encode again.
+    public static void endEncoder() {
+        PayloadEncoder encoder = encoders.get();
+        if (encoder != null) {
+            encoder.end();
+            encoders.remove();
+        }
+    }
+
+    // Also builds the NDEF template for signer, so signing is all that's left for sign.
+    public synchronized void prepare(CryptoManager.PreparedSigner signer) throws TagManager.TagManagerException {
+        prepare();
+        if (!built || signer != this.signer)
+            build(signer);
+    }
+
+    /**
+     * Returns the NDEF message bytes, signed over extraSignData[off, off + len) if signer is set.
+     */
+    public synchronized byte[] sign(CryptoManager.PreparedSigner signer, byte[] extraSignData, int off, int len) throws TagManager.TagManagerException {
+        prepare(signer);
+
+        if (signer == null)
+            return ndef;
+
+        if (signLen + len > signBuf.length)
+            signBuf = Arrays.copyOf(signBuf, signLen + len);
+        System.arraycopy(extraSignData, off, signBuf, signLen, len);
+
+        try {
+            signer.sign(signBuf, 0, signLen + len, ndef, sigOff);
+        } catch(CryptoManager.CryptoManagerException e) {
+            throw new TagManager.TagManagerException("Crypto signing error: " + e.getMessage());
+        }
+
+        return ndef;
+    }
+
+    // The signature is left zero, the payload sits at the end of the first record.
+    private void build(CryptoManager.PreparedSigner signer) {
+        byte[] data = payload;
+
+        if (signer != null) {
+            data = new byte[PayloadFormat.SIGNED_HEADER_SIZE + payload.length];
+            data[0] = (byte)PayloadFormat.PAYLOAD_SIGNED;
+            PayloadFormat.writeInt(data, KEY_ID_OFFSET, signer.getKeyId());
+            System.arraycopy(payload, 0, data, PayloadFormat.SIGNED_HEADER_SIZE, payload.length);
+
+            signLen = data.length - KEY_ID_OFFSET;
+            signBuf = Arrays.copyOfRange(data, KEY_ID_OFFSET, data.length + 16);
+        }
+
+        ndef = TagManager.buildMessage(data).toByteArray();
+        sigOff = TagManager.payloadOffset(data) + 1;
+
+        this.signer = signer;
+        built = true;
+    }
+}
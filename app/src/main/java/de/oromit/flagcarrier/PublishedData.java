@@ -0,0 +1,61 @@
+package de.oromit.flagcarrier;
+
+import java.util.Arrays;
+
+/**
+ * Immutable snapshot of what HCEService serves. Every publish swaps in a new snapshot with the
+ * next version, so the version identifies the pre-encoded messages it holds and a session can
+ * tell whether the data it served is still the current one. One-time data is a FIFO queue,
+ * the head is served until it has been read completely.
+ */
+final class PublishedData {
+    private static final PreparedMessage[] NO_MESSAGES = new PreparedMessage[0];
+
+    public static final PublishedData EMPTY = new PublishedData(0, null, NO_MESSAGES);
+
+    public final long version;
+    public final PreparedMessage data;
+    private final PreparedMessage[] oneTimeData;
+
+    private PublishedData(long version, PreparedMessage data, PreparedMessage[] oneTimeData) {
+        this.version = version;
+        this.data = data;
+        this.oneTimeData = oneTimeData;
+    }
+
+    public PublishedData withData(PreparedMessage data) {
+        return new PublishedData(version + 1, data, oneTimeData);
+    }
+
+    // Replaces the whole queue, null clears it.
+    public PublishedData withOneTimeData(PreparedMessage oneTimeData) {
+        return new PublishedData(version + 1, data,
+                oneTimeData != null ? new PreparedMessage[] { oneTimeData } : NO_MESSAGES);
+    }
+
+    public PublishedData withQueuedOneTimeData(PreparedMessage msg) {
+        PreparedMessage[] queue = Arrays.copyOf(oneTimeData, oneTimeData.length + 1);
+        queue[oneTimeData.length] = msg;
+        return new PublishedData(version + 1, data, queue);
+    }
+
+    public PublishedData withoutNextOneTimeData() {
+        if (oneTimeData.length == 0)
+            return this;
+        return new PublishedData(version + 1, data, Arrays.copyOfRange(oneTimeData, 1, oneTimeData.length));
+    }
+
+    public PreparedMessage nextOneTimeData() {
+        return oneTimeData.length != 0 ? oneTimeData[0] : null;
+    }
+
+    public int getQueueDepth() {
+        return oneTimeData.length;
+    }
+
+    // One-time data takes precedence until it has been read completely.
+    public PreparedMessage current() {
+        PreparedMessage next = nextOneTimeData();
+        return next != null ? next : data;
+    }
+}
@@ -0,0 +1,155 @@
+package de.oromit.flagcarrier;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Profiles for bulk writing, either a JSON array of objects or CSV with the keys in the
+ * header row. Empty values are left out and every profile is checked like the write form
+ * checks its input.
+ */
+class Roster {
+    public static class RosterException extends Exception {
+        RosterException(String message) {
+            super(message);
+        }
+    }
+
+    private static final int MAX_KEY_LENGTH = 32;
+    private static final int MAX_VALUE_LENGTH = 255;
+
+    public static List<Map<String, String>> parse(String text) throws RosterException {
+        String t = text.trim();
+        if (!t.isEmpty() && t.charAt(0) == '\uFEFF')
+            t = t.substring(1);
+
+        List<Map<String, String>> entries = t.startsWith("[") ? parseJson(t) : parseCsv(t);
+        if (entries.isEmpty())
+            throw new RosterException("Roster is empty");
+
+        for (int i = 0; i < entries.size(); ++i)
+            check(entries.get(i), i + 1);
+
+        return entries;
+    }
+
+    private static List<Map<String, String>> parseJson(String text) throws RosterException {
+        List<Map<String, String>> entries = new ArrayList<>();
+
+        try {
+            JSONArray arr = new JSONArray(text);
+            for (int i = 0; i < arr.length(); ++i) {
+                JSONObject obj = arr.getJSONObject(i);
+                Map<String, String> data = new LinkedHashMap<>();
+
+                Iterator<String> keys = obj.keys();
+                while (keys.hasNext()) {
+                    String key = keys.next();
+                    String value = obj.isNull(key) ? "" : obj.get(key).toString().trim();
+                    if (!value.isEmpty())
+                        data.put(key.trim(), value);
+                }
+
+                entries.add(data);
+            }
+        } catch(JSONException e) {
+            throw new RosterException("Malformed JSON roster: " + e.getMessage());
+        }
+
+        return entries;
+    }
+
+    private static List<Map<String, String>> parseCsv(String text) throws RosterException {
+        List<List<String>> rows = splitCsv(text);
+        if (rows.isEmpty())
+            return new ArrayList<>();
+
+        List<String> header = rows.get(0);
+        List<Map<String, String>> entries = new ArrayList<>(rows.size() - 1);
+
+        for (int r = 1; r < rows.size(); ++r) {
+            List<String> row = rows.get(r);
+            if (row.size() == 1 && row.get(0).trim().isEmpty())
+                continue;
+            if (row.size() > header.size())
+                throw new RosterException("Line " + (r + 1) + " has more fields than the header");
+
+            Map<String, String> data = new LinkedHashMap<>();
+            for (int c = 0; c < row.size(); ++c) {
+                String value = row.get(c).trim();
+                if (!value.isEmpty())
+                    data.put(header.get(c).trim(), value);
+            }
+
+            entries.add(data);
+        }
+
+        return entries;
+    }
+
+    // RFC 4180, quoted fields may contain separators, quotes and line breaks.
+    private static List<List<String>> splitCsv(String text) throws RosterException {
+        List<List<String>> rows = new ArrayList<>();
+        List<String> row = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+
+        for (int i = 0; i < text.length(); ++i) {
+            char c = text.charAt(i);
+
+            if (quoted) {
+                if (c != '"') {
+                    field.append(c);
+                } else if (i + 1 < text.length() && text.charAt(i + 1) == '"') {
+                    field.append('"');
+                    ++i;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                row.add(field.toString());
+                field.setLength(0);
+            } else if (c == '\n' || c == '\r') {
+                if (c == '\r' && i + 1 < text.length() && text.charAt(i + 1) == '\n')
+                    ++i;
+                row.add(field.toString());
+                field.setLength(0);
+                rows.add(row);
+                row = new ArrayList<>();
+            } else {
+                field.append(c);
+            }
+        }
+
+        if (quoted)
+            throw new RosterException("Unterminated quote in CSV roster");
+
+        row.add(field.toString());
+        rows.add(row);
+        return rows;
+    }
+
+    private static void check(Map<String, String> data, int n) throws RosterException {
+        String name = data.get("display_name");
+        if (name == null || name.isEmpty())
+            throw new RosterException("Entry " + n + ": A display name is required");
+
+        for (Map.Entry<String, String> e : data.entrySet()) {
+            if (e.getKey().isEmpty())
+                throw new RosterException("Entry " + n + ": Empty key");
+            if (e.getKey().length() > MAX_KEY_LENGTH)
+                throw new RosterException("Entry " + n + ": Key length > " + MAX_KEY_LENGTH);
+            if (e.getValue().length() > MAX_VALUE_LENGTH)
+                throw new RosterException("Entry " + n + ": Value length > " + MAX_VALUE_LENGTH);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package de.oromit.flagcarrier;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Process wide LRU cache of parsed tags, so tapping the same tag again skips inflating,
+ * parsing and signature verification. Entries are keyed by the extra sign data (the tag UID),
+ * the NDEF payload and the public key in use, and everything is dropped when pub_key changes.
+ */
+class TagCache {
+    private static final int MAX_ENTRIES = 32;
+
+    private static TagCache instance = null;
+
+    private final LinkedHashMap<Key, TagView> entries = new LinkedHashMap<Key, TagView>(MAX_ENTRIES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, TagView> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private int hits = 0;
+    private int misses = 0;
+
+    // SharedPreferences only keeps a weak reference to its listeners.
+    private final SharedPreferences.OnSharedPreferenceChangeListener prefListener = (prefs, key) -> {
+        if ("pub_key".equals(key))
+            clear();
+    };
+
+    public static synchronized TagCache getInstance(Context ctx) {
+        if (instance == null) {
+            instance = new TagCache();
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ctx.getApplicationContext());
+            prefs.registerOnSharedPreferenceChangeListener(instance.prefListener);
+        }
+        return instance;
+    }
+
+    public synchronized TagView get(byte[] uid, byte[] payload, byte[] publicKey) {
+        TagView view = entries.get(new Key(uid, payload, publicKey));
+        if (view == null)
+            ++misses;
+        else
+            ++hits;
+        return view;
+    }
+
+    public synchronized void put(byte[] uid, byte[] payload, byte[] publicKey, TagView view) {
+        entries.put(new Key(uid, payload, publicKey), view);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    private static class Key {
+        private final byte[] uid;
+        private final byte[] payload;
+        private final byte[] publicKey;
+        private final int hash;
+
+        Key(byte[] uid, byte[] payload, byte[] publicKey) {
+            this.uid = uid;
+            this.payload = payload;
+            this.publicKey = publicKey;
+            this.hash = 31 * (31 * Arrays.hashCode(uid) + Arrays.hashCode(payload)) + Arrays.hashCode(publicKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        // The full payload is compared, a hash collision must never return another tag's data.
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key k = (Key)o;
+            return hash == k.hash
+                    && Arrays.equals(uid, k.uid)
+                    && Arrays.equals(payload, k.payload)
+                    && Arrays.equals(publicKey, k.publicKey);
+        }
+    }
+}
@@ -1,36 +1,18 @@
 package de.oromit.flagcarrier;
 
 import android.content.Context;
-import android.content.SharedPreferences;
-import android.nfc.FormatException;
 import android.nfc.NdefMessage;
 import android.nfc.NdefRecord;
 import android.nfc.Tag;
-import android.nfc.TagLostException;
 import android.nfc.tech.MifareClassic;
 import android.nfc.tech.MifareUltralight;
-import android.nfc.tech.Ndef;
-import android.nfc.tech.NdefFormatable;
-import android.preference.PreferenceManager;
 import android.util.Base64;
-import android.util.Log;
-import android.widget.Toast;
-
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.EOFException;
-import java.io.IOException;
-import java.io.UTFDataFormatException;
+
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.zip.DataFormatException;
-import java.util.zip.Deflater;
-import java.util.zip.Inflater;
 
 class TagManager {
     public static class TagManagerException extends Exception {
@@ -43,8 +25,16 @@ class TagManager {
     private static final String APP_REC = "de.oromit.flagcarrier";
 
     private byte[] extraSignData = null;
-    private byte[] publicKey = null;
-    private byte[] privateKey = null;
+    private KeyRing keyRing = null;
+    private CryptoManager.PreparedSigner signer = null;
+
+    private final PayloadEncoder encoder = new PayloadEncoder();
+    private final PayloadInflater inflater = new PayloadInflater();
+    private TagCache cache = null;
+
+    private int lastPagesWritten = -1;
+    private long lastWriteMillis = 0;
+    private boolean lastWriteVerified = false;
 
     public void setExtraSignData(byte[] data) {
         extraSignData = data;
@@ -55,34 +45,49 @@ class TagManager {
     }
 
     public void setPublicKey(byte[] key) {
-        publicKey = key;
+        setKeyRing(key != null && key.length != 0 ? KeyRing.of(key) : null);
+    }
+
+    public void setKeyRing(KeyRing keyRing) {
+        this.keyRing = keyRing;
     }
 
     public boolean hasPublicKey() {
-        return publicKey != null && publicKey.length != 0;
+        return keyRing != null && !keyRing.isEmpty();
     }
 
     public void setPrivateKey(byte[] data) {
-        privateKey = data;
+        setSigner(data != null && data.length != 0 ? new CryptoManager.PreparedSigner(data) : null);
+    }
+
+    public void setSigner(CryptoManager.PreparedSigner signer) {
+        this.signer = signer;
     }
 
     public boolean hasPrivateKey() {
-        return privateKey != null && privateKey.length != 0;
+        return signer != null;
     }
 
-    public void loadKeysFromPrefs(Context ctx) {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ctx);
+    public void setCache(TagCache cache) {
+        this.cache = cache;
+    }
 
-        String pk = prefs.getString("pub_key", null);
-        if (pk != null && pk.length() != 0)
-            setPublicKey(Base64.decode(pk, Base64.DEFAULT));
+    // Frees the native zlib state, the next encode or parse sets it up again.
+    public void close() {
+        encoder.end();
+        inflater.end();
+    }
 
-        String sk = prefs.getString("priv_key", null);
-        if (sk != null && sk.length() != 0)
-            setPrivateKey(Base64.decode(sk, Base64.DEFAULT));
+    public void loadKeysFromPrefs(Context ctx) {
+        KeyMaterial.getInstance(ctx).applyTo(this);
     }
 
     public void setExtraSignDataFromTag(Tag tag) {
+        setExtraSignData(extraSignDataFromTag(tag));
+    }
+
+    // The UID with a byte for the tag type, what signatures of written tags are bound to.
+    public static byte[] extraSignDataFromTag(Tag tag) {
         byte[] uid = tag.getId();
         List<String> techs = Arrays.asList(tag.getTechList());
 
@@ -97,31 +102,104 @@ class TagManager {
             nuid = uid;
         }
 
-        setExtraSignData(nuid);
+        return nuid;
+    }
+
+    // Pages the last write sent, -1 if it went through the framework and nobody knows.
+    public int getLastPagesWritten() {
+        return lastPagesWritten;
+    }
+
+    public long getLastWriteMillis() {
+        return lastWriteMillis;
+    }
+
+    // Whether the last write was read back and matched, freshly formatted tags can't be.
+    public boolean isLastWriteVerified() {
+        return lastWriteVerified;
     }
 
     public void writeToTag(Tag tag, NdefMessage msg) throws TagManagerException {
+        writeToTag(tag, msg, false);
+    }
+
+    public void writeToTag(Tag tag, NdefMessage msg, boolean makeReadOnly) throws TagManagerException {
         if(!isSupported(tag))
             throw new TagManagerException("Tag is not supported");
 
-        if(msg == null || msg.getRecords().length == 0)
-            throw new TagManagerException("No data to write");
+        TagSession session = TagSession.get(tag);
+        if(session == null)
+            throw new TagManagerException("Tag not Ndef formatable");
+
+        writeToTag(session, msg, makeReadOnly);
+    }
 
-        if(!writeNdef(tag, msg))
-            formatNdef(tag, msg);
+    public void writeToTag(TagTransport transport, NdefMessage msg) throws TagManagerException {
+        writeToTag(new TagSession(transport), msg, false);
+    }
+
+    void writeToTag(TagSession session, NdefMessage msg, boolean makeReadOnly) throws TagManagerException {
+        lastPagesWritten = -1;
+        lastWriteVerified = false;
+        boolean closeFailed = false;
+
+        try {
+            session.open();
+            session.write(msg, makeReadOnly);
+        } finally {
+            lastWriteMillis = session.getWriteMillis();
+            try {
+                session.close();
+            } catch (Exception e) {
+                closeFailed = true;
+            }
+        }
+
+        if(closeFailed)
+            throw new TagManagerException("Tag connection failed to close");
+
+        lastPagesWritten = session.getPagesWritten();
+        lastWriteVerified = session.isVerified();
     }
 
     public NdefMessage generateMessage(Map<String, String> inputData) throws TagManagerException {
-        byte[] rawData = generateRawData(inputData);
-        byte[] data = compressRawData(rawData);
+        byte[] data = encoder.encode(inputData,
+                signer,
+                hasExtraSignData() ? extraSignData : null);
+
+        return buildMessage(data);
+    }
 
+    static NdefMessage buildMessage(byte[] payload) {
         return new NdefMessage(new NdefRecord[] {
-                NdefRecord.createMime(MIME_TYPE, data),
+                NdefRecord.createMime(MIME_TYPE, payload),
                 NdefRecord.createApplicationRecord(APP_REC)
         });
     }
 
+    // Offset of the payload in buildMessage(payload).toByteArray(): flags, type length,
+    // payload length (short records up to 255 bytes) and the type, no id.
+    static int payloadOffset(byte[] payload) {
+        return 2 + (payload.length < 256 ? 1 : 4) + MIME_TYPE.length();
+    }
+
+    // Size of the message buildMessage makes from a payload of that length, the
+    // application record is a short record with the type "android.com:pkg".
+    static int messageSize(int payloadLength) {
+        int appRecord = 3 + "android.com:pkg".length() + APP_REC.length();
+        return 2 + (payloadLength < 256 ? 1 : 4) + MIME_TYPE.length() + payloadLength + appRecord;
+    }
+
     public Map<String, String> parseMessage(NdefMessage msg) throws TagManagerException {
+        return parseView(msg).asMap();
+    }
+
+    public TagView parseView(NdefMessage msg) throws TagManagerException {
+        return parseCachedPayload(findPayload(msg));
+    }
+
+    // The FlagCarrier record's payload.
+    static byte[] findPayload(NdefMessage msg) throws TagManagerException {
         if(msg == null)
             throw new TagManagerException("No message to parse");
 
@@ -134,7 +212,7 @@ class TagManager {
             String type = new String(rec.getType(), StandardCharsets.US_ASCII);
 
             if(type.equals("application/vnd.de.oromit.flagcarrier"))
-                return parsePayload(rec.getPayload());
+                return rec.getPayload();
         }
 
         throw new TagManagerException("No supported record in Ndef message");
@@ -150,214 +228,119 @@ class TagManager {
         return false;
     }
 
-    private byte[] generateRawData(Map<String, String> kvMap) throws TagManagerException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        try {
-            for (Map.Entry<String, String> entry : kvMap.entrySet()) {
-                String k = entry.getKey().trim();
-                String v = entry.getValue().trim();
-                if(v.isEmpty())
-                    continue;
-                dos.writeUTF(k);
-                dos.writeUTF(v);
-            }
-
-            dos.flush();
-        } catch (IOException e) {
-            throw new TagManagerException("Data generation failed");
-        }
-
-        byte[] rawData = baos.toByteArray();
-
-        if (!hasPrivateKey())
-            return rawData;
-
-        byte[] signData = rawData;
-        if (hasExtraSignData())
-        {
-            signData = new byte[rawData.length + extraSignData.length];
-            System.arraycopy(rawData, 0, signData, 0, rawData.length);
-            System.arraycopy(extraSignData, 0, signData, rawData.length, extraSignData.length);
-        }
+    private TagView parseCachedPayload(byte[] payload) throws TagManagerException {
+        if (cache == null)
+            return parsePayload(payload, true);
 
-        byte[] sig;
-
-        try {
-            sig = CryptoManager.signDetached(signData, privateKey);
-        } catch(CryptoManager.CryptoManagerException e) {
-            throw new TagManagerException("Crypto signing error: " + e.getMessage());
+        byte[] publicKey = hasPublicKey() ? keyRing.getFingerprint() : null;
+        TagView view = cache.get(extraSignData, payload, publicKey);
+        if (view == null) {
+            view = parsePayload(payload, true);
+            cache.put(extraSignData, payload, publicKey, view);
         }
 
-        String sigStr = Base64.encodeToString(sig, Base64.NO_WRAP);
+        return view;
+    }
 
-        baos.reset();
-        dos = new DataOutputStream(baos);
+    // With verify unset the signature is left for a batch check through buildVerifyItem.
+    TagView parsePayload(byte[] payload, boolean verify) throws TagManagerException {
+        if (payload.length == 0)
+            throw new TagManagerException("Empty payload on tag");
 
-        try {
-            dos.writeUTF("sig");
-            dos.writeUTF(sigStr);
-            dos.write(rawData);
+        TagView view;
 
-            dos.flush();
-        } catch (IOException e) {
-            throw new TagManagerException("Sig writeout failed");
-        }
+        if ((payload[0] & 0xFF) == PayloadFormat.PAYLOAD_SIGNED) {
+            int hdr = PayloadFormat.SIGNED_HEADER_SIZE;
+            if (payload.length <= hdr)
+                throw new TagManagerException("Incomplete data on tag");
+            if ((payload[hdr] & 0xFF) == PayloadFormat.PAYLOAD_SIGNED)
+                throw new TagManagerException("Unsupported payload codec");
 
-        return baos.toByteArray();
-    }
+            // The signed region is the compressed payload, extraSignData goes right behind it.
+            byte[] buf = hasExtraSignData() ? Arrays.copyOf(payload, payload.length + extraSignData.length) : payload;
+            int kidOff = 1 + CryptoManager.SIGNATURE_SIZE;
 
-    private static byte[] compressRawData(byte[] rawData) {
-        Deflater d = new Deflater(9);
-        d.setInput(rawData);
-        d.finish();
-
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-
-        byte[] buf = new byte[256];
-        while(!d.finished()) {
-            int n = d.deflate(buf);
-            baos.write(buf, 0, n);
+            view = unpack(payload, hdr, 0);
+            view.setHeaderSignature(buf, 1, kidOff, payload.length - kidOff, PayloadFormat.readInt(payload, kidOff));
+        } else {
+            // Room behind the data to append extraSignData for verification in place.
+            view = unpack(payload, 0, hasExtraSignData() ? extraSignData.length : 0);
         }
 
-        d.end();
+        if (verify && view.hasSignature() && hasPublicKey())
+            view.setSignatureValid(verifySignature(view));
 
-        return baos.toByteArray();
+        return view;
     }
 
-    private boolean writeNdef(Tag tag, NdefMessage msg) throws TagManagerException {
-        Ndef ndef = Ndef.get(tag);
-        if(ndef == null)
-            return false;
+    private TagView unpack(byte[] payload, int off, int tail) throws TagManagerException {
+        byte[] data;
 
-        boolean closeFailed = false;
-
-        try {
-            ndef.connect();
-
-            if(!ndef.isWritable())
-                throw new TagManagerException("Tag is not writable");
-
-            int size = msg.toByteArray().length;
-            int maxSize = ndef.getMaxSize();
-            if(maxSize < size)
-                throw new TagManagerException("Tag is too small: " + size + "/" + maxSize);
-
-            ndef.writeNdefMessage(msg);
-        } catch(TagLostException e) {
-            throw new TagManagerException("Lost tag connection");
-        } catch(FormatException e) {
-            throw new TagManagerException("Malformed Ndef message");
-        } catch(IOException e) {
-            throw new TagManagerException("Tag IO failed: " + e.getMessage());
-        } catch(UnsupportedOperationException e) {
-            throw new TagManagerException("Write eperation not supported: " + e.getMessage());
-        } finally {
-            try {
-                ndef.close();
-            } catch (Exception e) {
-                closeFailed = true;
+        int head = payload[off] & 0xFF;
+        if ((head & 0xF0) != PayloadFormat.PAYLOAD_MARKER) {
+            data = inflater.inflate(payload, off, false, null, tail);
+        } else {
+            switch (head & 0x0F) {
+                case PayloadFormat.CODEC_STORED:
+                    data = Arrays.copyOfRange(payload, off + 1, payload.length + tail);
+                    break;
+                case PayloadFormat.CODEC_DEFLATE:
+                    data = inflater.inflate(payload, off + 1, true, null, tail);
+                    break;
+                case PayloadFormat.CODEC_DICT:
+                    if (payload.length < off + 2)
+                        throw new TagManagerException("Incomplete data on tag");
+                    PayloadDictionary dict = PayloadDictionary.forVersion(payload[off + 1] & 0xFF);
+                    if (dict == null)
+                        throw new TagManagerException("Unknown payload dictionary");
+                    data = inflater.inflate(payload, off + 2, true, dict, tail);
+                    break;
+                default:
+                    throw new TagManagerException("Unsupported payload codec");
             }
         }
 
-        if(closeFailed)
-            throw new TagManagerException("Ndef connection failed to close");
-
-        return true;
+        return TagView.parse(data, data.length - tail);
     }
 
-    private static void formatNdef(Tag tag, NdefMessage msg) throws TagManagerException {
-        NdefFormatable ndef = NdefFormatable.get(tag);
-        if(ndef == null)
-            throw new TagManagerException("Tag not Ndef formatable");
-
-        boolean closeFailed = false;
-
+    private boolean verifySignature(TagView view) throws TagManagerException {
         try {
-            ndef.connect();
-            ndef.format(msg);
-        } catch(TagLostException e) {
-            throw new TagManagerException("Lost tag connection");
-        } catch(FormatException e) {
-            throw new TagManagerException("Malformed Ndef message");
-        } catch(IOException e) {
-            throw new TagManagerException("Tag IO failed: " + e.getMessage());
-        } catch(UnsupportedOperationException e) {
-            throw new TagManagerException("Write eperation not supported: " + e.getMessage());
-        } finally {
-            try {
-                ndef.close();
-            } catch (Exception e) {
-                closeFailed = true;
-            }
+            return buildVerifyItem(view).verify();
+        } catch(CryptoManager.CryptoManagerException e) {
+            throw new TagManagerException("Crypto error: " + e.getMessage());
         }
-
-        if(closeFailed)
-            throw new TagManagerException("NdefFormatable connection failed to close");
     }
 
-    private Map<String,String> parsePayload(byte[] payload) throws TagManagerException {
-        try {
-            Inflater infl = new Inflater();
-            infl.setInput(payload);
-
-            byte[] buf = new byte[256];
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-
-            while (!infl.finished()) {
-                int n = infl.inflate(buf);
-                baos.write(buf, 0, n);
-            }
-
-            infl.end();
+    CryptoManager.VerifyItem buildVerifyItem(TagView view) throws TagManagerException {
+        byte[] buf = view.getSignedData();
+        int signedLen = view.getSignedLength();
 
-            return parseData(baos.toByteArray());
-        } catch (DataFormatException e) {
-            throw new TagManagerException("Malformed deflate data");
+        if (hasExtraSignData()) {
+            System.arraycopy(extraSignData, 0, buf, view.getSignedOffset() + signedLen, extraSignData.length);
+            signedLen += extraSignData.length;
         }
-    }
 
-    private Map<String,String> parseData(byte[] data) throws TagManagerException {
         try {
-            ByteArrayInputStream bais = new ByteArrayInputStream(data);
-            DataInputStream dis = new DataInputStream(bais);
-            Map<String, String> tagDataMap = new HashMap<>();
-
-            while (dis.available() > 0) {
-                int initPos = data.length - dis.available();
-                String key = dis.readUTF();
-                String value = dis.readUTF();
-
-                if (key.equals("sig_valid"))
-                    continue;
-
-                if (initPos == 0 && key.equals("sig") && hasPublicKey()) {
-                    byte[] msg = new byte[dis.available() + (hasExtraSignData() ? extraSignData.length : 0)];
-
-                    System.arraycopy(data, data.length - dis.available(), msg, 0, dis.available());
-                    if (hasExtraSignData())
-                        System.arraycopy(extraSignData, 0, msg, dis.available(), extraSignData.length);
-
-                    byte[] sig = Base64.decode(value, Base64.DEFAULT);
-                    boolean sigValid = CryptoManager.verifyDetached(sig, msg, publicKey);
-
-                    tagDataMap.put("sig_valid", Boolean.toString(sigValid));
-                }
+            byte[] sig = buf;
+            int sigOff = view.getSignatureOffset();
+            if (!view.isSignatureRaw()) {
+                sig = Base64.decode(buf, sigOff, view.getSignatureLength(), Base64.DEFAULT);
+                sigOff = 0;
+                if (sig.length != CryptoManager.SIGNATURE_SIZE)
+                    throw new TagManagerException("Crypto error: Signature size is invalid for verification.");
+            }
 
-                tagDataMap.put(key, value);
+            // Tags written before key ids are tried against every trusted key.
+            List<CryptoManager.PreparedVerifier> verifiers = keyRing.getVerifiers();
+            Integer kid = view.getKeyId();
+            if (kid != null) {
+                CryptoManager.PreparedVerifier verifier = keyRing.forKeyId(kid);
+                verifiers = verifier != null ? Collections.singletonList(verifier) : Collections.emptyList();
             }
 
-            return tagDataMap;
-        } catch(UTFDataFormatException e) {
-            throw new TagManagerException("Malformed data on tag");
-        } catch(EOFException e) {
-            throw new TagManagerException("Incomplete data on tag");
-        } catch(IOException e) {
-            throw new TagManagerException("Parser IO error: " + e.getMessage());
-        } catch(CryptoManager.CryptoManagerException e) {
-            throw new TagManagerException("Crypto error: " + e.getMessage());
+            return new CryptoManager.VerifyItem(sig, sigOff, buf, view.getSignedOffset(), signedLen, verifiers);
+        } catch(IllegalArgumentException e) {
+            throw new TagManagerException("Malformed signature on tag");
         }
     }
-
 }
@@ -0,0 +1,123 @@
+package de.oromit.flagcarrier;
+
+import android.nfc.FormatException;
+import android.nfc.NdefMessage;
+import android.nfc.Tag;
+import android.nfc.TagLostException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * One connection to a tag for provisioning it. write checks the capacity, writes, reads the
+ * message back and compares it and makes the tag read-only if asked, without reconnecting in
+ * between. The message is encoded once for all of that.
+ * Freshly formatted tags can't be read back on the same connection and stay unverified.
+ */
+class TagSession implements Closeable {
+    private final TagTransport transport;
+    private boolean connected = false;
+
+    private boolean verified = false;
+    private boolean readOnly = false;
+    private long writeNanos = 0;
+
+    public TagSession(TagTransport transport) {
+        this.transport = transport;
+    }
+
+    // Formatted Type 2 tags get the page diffing writer, null if the tag can't take NDEF at all.
+    public static TagSession get(Tag tag) {
+        TagTransport transport = Type2TagTransport.get(tag);
+        if(transport == null)
+            transport = NdefTransport.get(tag);
+        if(transport == null)
+            transport = NdefFormatableTransport.get(tag);
+        return transport != null ? new TagSession(transport) : null;
+    }
+
+    public void open() throws TagManager.TagManagerException {
+        try {
+            transport.connect();
+            connected = true;
+        } catch(TagLostException e) {
+            throw new TagManager.TagManagerException("Lost tag connection");
+        } catch(IOException e) {
+            throw new TagManager.TagManagerException("Tag IO failed: " + e.getMessage());
+        }
+    }
+
+    public void write(NdefMessage msg, boolean makeReadOnly) throws TagManager.TagManagerException {
+        if(msg == null || msg.getRecords().length == 0)
+            throw new TagManager.TagManagerException("No data to write");
+        if(!connected)
+            throw new TagManager.TagManagerException("Tag is not connected");
+
+        long start = System.nanoTime();
+        verified = false;
+        readOnly = false;
+
+        byte[] encoded = msg.toByteArray();
+
+        try {
+            if(!transport.isWritable())
+                throw new TagManager.TagManagerException("Tag is not writable");
+
+            int maxSize = transport.getMaxSize();
+            if(maxSize >= 0 && maxSize < encoded.length)
+                throw new TagManager.TagManagerException("Tag is too small: " + encoded.length + "/" + maxSize);
+
+            boolean locked = transport.writeNdefMessage(msg, encoded, makeReadOnly);
+
+            byte[] written = transport.readNdefMessage();
+            if(written != null) {
+                if(!Arrays.equals(written, encoded))
+                    throw new TagManager.TagManagerException("Verification failed, tag holds different data");
+                verified = true;
+            }
+
+            if(makeReadOnly) {
+                if(!locked && !transport.makeReadOnly())
+                    throw new TagManager.TagManagerException("Tag was written but can't be made read-only");
+                readOnly = true;
+            }
+        } catch(TagLostException e) {
+            throw new TagManager.TagManagerException("Lost tag connection");
+        } catch(FormatException e) {
+            throw new TagManager.TagManagerException("Malformed Ndef message");
+        } catch(IOException e) {
+            throw new TagManager.TagManagerException("Tag IO failed: " + e.getMessage());
+        } catch(UnsupportedOperationException e) {
+            throw new TagManager.TagManagerException("Write eperation not supported: " + e.getMessage());
+        } finally {
+            writeNanos = System.nanoTime() - start;
+        }
+    }
+
+    // Whether the last write was read back and matched.
+    public boolean isVerified() {
+        return verified;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    public long getWriteMillis() {
+        return writeNanos / 1000000;
+    }
+
+    // Pages the last write sent, -1 if it went through the framework and nobody knows.
+    public int getPagesWritten() {
+        if(transport instanceof Type2TagTransport)
+            return ((Type2TagTransport)transport).getPagesWritten();
+        return -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        connected = false;
+        transport.close();
+    }
+}
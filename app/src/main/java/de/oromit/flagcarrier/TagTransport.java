@@ -0,0 +1,33 @@
+package de.oromit.flagcarrier;
+
+import android.nfc.FormatException;
+import android.nfc.NdefMessage;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Connection to a tag for writing NDEF, either a real tag through Ndef, NdefFormatable or
+ * Type2TagTransport or a SimulatedTag in the unit tests. TagSession runs its steps on one connection.
+ */
+interface TagTransport extends Closeable {
+    void connect() throws IOException;
+
+    boolean isWritable();
+
+    // Maximum NDEF message size in bytes, -1 if the tag can't tell before formatting.
+    int getMaxSize();
+
+    /**
+     * encoded is msg.toByteArray(), for transports that write raw bytes. Transports that can
+     * only lock a tag while writing it do so if makeReadOnly is set and return true, all others
+     * return false and are locked through makeReadOnly after the read back.
+     */
+    boolean writeNdefMessage(NdefMessage msg, byte[] encoded, boolean makeReadOnly) throws IOException, FormatException;
+
+    // Raw NDEF message on the tag, null if it can't be read back on this connection.
+    byte[] readNdefMessage() throws IOException, FormatException;
+
+    // Returns false if the tag can't be made read-only.
+    boolean makeReadOnly() throws IOException;
+}
@@ -0,0 +1,295 @@
+package de.oromit.flagcarrier;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Read-only view over inflated tag data. One pass indexes where every key and value sits,
+ * strings are only decoded when asked for. The signature and the signed region are exposed as
+ * slices of the buffer that holds them, the data itself for tags signed with a "sig" entry and
+ * the payload for tags with a signature header. Entries repeated on the tag resolve to the last
+ * one, like the old HashMap.
+ */
+class TagView {
+    private static final byte[] SIG_KEY = "sig".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SIG_VALID_KEY = "sig_valid".getBytes(StandardCharsets.US_ASCII);
+
+    private final byte[] data;
+    private final int length;
+    private final boolean v2;
+
+    private int count = 0;
+    private int[] keyIds = new int[8];
+    private int[] keyOffs = new int[8];
+    private int[] keyLens = new int[8];
+    private int[] valOffs = new int[8];
+    private int[] valLens = new int[8];
+    private String[] keys = new String[8];
+    private String[] values = new String[8];
+
+    private byte[] sigBuf = null;
+    private int sigOff = 0;
+    private int sigLen = 0;
+    private boolean sigRaw = false;
+    private int signedOff = 0;
+    private int signedLen = 0;
+    private Integer headerKeyId = null;
+    private Boolean sigValid = null;
+    private Map<String, String> map = null;
+
+    private TagView(byte[] data, int length) {
+        this.data = data;
+        this.length = length;
+        this.v2 = length > 0 && data[0] == PayloadFormat.DATA_V2;
+    }
+
+    /**
+     * Indexes the first length bytes of data. The buffer is kept, not copied, anything behind
+     * length is free for the caller to use.
+     */
+    public static TagView parse(byte[] data, int length) throws TagManager.TagManagerException {
+        TagView view = new TagView(data, length);
+        view.index();
+        return view;
+    }
+
+    private void index() throws TagManager.TagManagerException {
+        PayloadReader reader = v2 ? new PayloadReader(data, 1, length - 1) : new PayloadReader(data, 0, length);
+        boolean first = true;
+
+        while (reader.hasRemaining()) {
+            int id = PayloadFormat.KEY_EXTRA;
+            int keyLen;
+
+            if (v2) {
+                id = reader.readVarint();
+                keyLen = id == PayloadFormat.KEY_EXTRA ? reader.readVarint() : 0;
+            } else {
+                keyLen = (reader.readByte() << 8) | reader.readByte();
+            }
+            int keyOff = reader.skipField(keyLen);
+
+            int valLen = v2 ? reader.readVarint() : (reader.readByte() << 8) | reader.readByte();
+            int valOff = reader.skipField(valLen);
+
+            // Malformed v1 strings have to fail here, decoding later on can't report it.
+            if (!v2) {
+                PayloadReader.checkModifiedUTF8(data, keyOff, keyLen);
+                PayloadReader.checkModifiedUTF8(data, valOff, valLen);
+            }
+
+            boolean isFirst = first;
+            first = false;
+
+            // Registered by a newer version of the app, nothing we can show for it.
+            if (v2 && id != PayloadFormat.KEY_EXTRA && PayloadFormat.keyName(id) == null)
+                continue;
+            if (id == PayloadFormat.KEY_EXTRA && rangeEquals(keyOff, keyLen, SIG_VALID_KEY))
+                continue;
+
+            if (isFirst && (id == PayloadFormat.KEY_SIG || (id == PayloadFormat.KEY_EXTRA && rangeEquals(keyOff, keyLen, SIG_KEY)))) {
+                sigBuf = data;
+                sigOff = valOff;
+                sigLen = valLen;
+                signedOff = reader.position();
+                signedLen = length - signedOff;
+            }
+
+            add(id, keyOff, keyLen, valOff, valLen);
+        }
+    }
+
+    private void add(int id, int keyOff, int keyLen, int valOff, int valLen) {
+        if (count == keyIds.length) {
+            int n = count * 2;
+            keyIds = Arrays.copyOf(keyIds, n);
+            keyOffs = Arrays.copyOf(keyOffs, n);
+            keyLens = Arrays.copyOf(keyLens, n);
+            valOffs = Arrays.copyOf(valOffs, n);
+            valLens = Arrays.copyOf(valLens, n);
+            keys = Arrays.copyOf(keys, n);
+            values = Arrays.copyOf(values, n);
+        }
+
+        keyIds[count] = id;
+        keyOffs[count] = keyOff;
+        keyLens[count] = keyLen;
+        valOffs[count] = valOff;
+        valLens[count] = valLen;
+        ++count;
+    }
+
+    private boolean rangeEquals(int off, int len, byte[] b) {
+        if (len != b.length)
+            return false;
+        for (int i = 0; i < len; ++i)
+            if (data[off + i] != b[i])
+                return false;
+        return true;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public String key(int i) {
+        if (keys[i] == null) {
+            if (keyIds[i] != PayloadFormat.KEY_EXTRA)
+                keys[i] = PayloadFormat.keyName(keyIds[i]);
+            else
+                keys[i] = decode(keyOffs[i], keyLens[i]);
+        }
+        return keys[i];
+    }
+
+    public String value(int i) {
+        if (values[i] == null)
+            values[i] = decode(valOffs[i], valLens[i]);
+        return values[i];
+    }
+
+    private String decode(int off, int len) {
+        if (v2)
+            return new String(data, off, len, StandardCharsets.UTF_8);
+
+        try {
+            return PayloadReader.decodeModifiedUTF8(data, off, len);
+        } catch (TagManager.TagManagerException e) {
+            throw new IllegalStateException("Checked while indexing: " + e.getMessage());
+        }
+    }
+
+    public int indexOf(String key) {
+        int id = v2 ? PayloadFormat.keyId(key) : PayloadFormat.KEY_EXTRA;
+
+        for (int i = count - 1; i >= 0; --i) {
+            if (id != PayloadFormat.KEY_EXTRA) {
+                if (keyIds[i] == id)
+                    return i;
+            } else if (keyIds[i] == PayloadFormat.KEY_EXTRA && key.equals(key(i))) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    public String get(String key) {
+        int i = indexOf(key);
+        return i < 0 ? null : value(i);
+    }
+
+    /**
+     * Takes the signature from the payload header instead, buf is the payload with room behind
+     * the signed region for the extra sign data.
+     */
+    public void setHeaderSignature(byte[] buf, int sigOff, int signedOff, int signedLen, int keyId) {
+        this.sigBuf = buf;
+        this.sigOff = sigOff;
+        this.sigLen = CryptoManager.SIGNATURE_SIZE;
+        this.sigRaw = true;
+        this.signedOff = signedOff;
+        this.signedLen = signedLen;
+        this.headerKeyId = keyId;
+    }
+
+    public boolean hasSignature() {
+        return sigBuf != null;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    // Holds both the signature and the signed region, anything behind the region is spare.
+    public byte[] getSignedData() {
+        return sigBuf;
+    }
+
+    public int getSignatureOffset() {
+        return sigOff;
+    }
+
+    public int getSignatureLength() {
+        return sigLen;
+    }
+
+    // Raw signature bytes from the header, otherwise the Base64 value of the "sig" entry.
+    public boolean isSignatureRaw() {
+        return sigRaw;
+    }
+
+    public int getSignedOffset() {
+        return signedOff;
+    }
+
+    public int getSignedLength() {
+        return signedLen;
+    }
+
+    // Id of the signing key from the header, null for tags signed with a "sig" entry.
+    public Integer getKeyId() {
+        return headerKeyId;
+    }
+
+    public Boolean getSignatureValid() {
+        return sigValid;
+    }
+
+    public void setSignatureValid(boolean valid) {
+        sigValid = valid;
+        map = null;
+    }
+
+    /**
+     * Map with the same content the parser used to produce, "sig_valid" included once the
+     * signature has been checked. Lookups go through the view, iterating decodes everything.
+     */
+    public Map<String, String> asMap() {
+        return new MapAdapter();
+    }
+
+    private Map<String, String> materialize() {
+        if (map != null)
+            return map;
+
+        Map<String, String> res = new LinkedHashMap<>();
+        for (int i = 0; i < count; ++i)
+            res.put(key(i), value(i));
+        if (sigValid != null)
+            res.put("sig_valid", Boolean.toString(sigValid));
+
+        map = Collections.unmodifiableMap(res);
+        return map;
+    }
+
+    private class MapAdapter extends AbstractMap<String, String> {
+        @Override
+        public String get(Object key) {
+            if (!(key instanceof String))
+                return null;
+            if (key.equals("sig_valid"))
+                return sigValid == null ? null : Boolean.toString(sigValid);
+            return TagView.this.get((String)key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            return materialize().entrySet();
+        }
+    }
+}
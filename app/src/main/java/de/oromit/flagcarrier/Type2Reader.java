@@ -0,0 +1,205 @@
+package de.oromit.flagcarrier;
+
+import android.nfc.FormatException;
+import android.nfc.NdefMessage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Reads the NDEF message of NFC Forum Type 2 tags (NTAG21x, MIFARE Ultralight) with raw READ
+ * or FAST_READ commands instead of the framework's NDEF check and read. Reading starts with
+ * the capability container and stops as soon as the NDEF TLV is complete. Tags that NAK
+ * FAST_READ are reconnected and read four pages at a time.
+ * Memory control TLVs are skipped, reserved areas inside the data area aren't supported.
+ */
+class Type2Reader {
+    interface Transport extends Closeable {
+        void connect() throws IOException;
+
+        byte[] transceive(byte[] cmd) throws IOException;
+
+        int getMaxTransceiveLength();
+
+        // Brings the tag back after a NAK, which sends it to the halt state.
+        void reconnect() throws IOException;
+    }
+
+    static final int PAGE_SIZE = 4;
+    static final int CC_PAGE = 3;
+    static final int DATA_PAGE = 4;
+
+    static final byte CMD_READ = 0x30;
+    static final byte CMD_FAST_READ = 0x3A;
+
+    static final int TLV_NULL = 0x00;
+    static final int TLV_NDEF = 0x03;
+    static final int TLV_TERMINATOR = 0xFE;
+
+    static final int READ_SIZE = 4 * PAGE_SIZE;
+
+    private boolean fastRead = true;
+    private int commands = 0;
+
+    private boolean useFastRead = true;
+    private byte[] cc = null;
+    private byte[] data = null;
+    private int have = 0;
+
+    public void setFastRead(boolean fastRead) {
+        this.fastRead = fastRead;
+    }
+
+    // Commands sent since the last begin.
+    public int getLastCommands() {
+        return commands;
+    }
+
+    public NdefMessage read(Transport transport) throws TagManager.TagManagerException, IOException {
+        try {
+            return new NdefMessage(readBytes(transport));
+        } catch(FormatException e) {
+            throw new TagManager.TagManagerException("Malformed Ndef message");
+        }
+    }
+
+    // Raw bytes of the NDEF message.
+    public byte[] readBytes(Transport transport) throws TagManager.TagManagerException, IOException {
+        begin(transport);
+
+        int[] ndef;
+        while ((ndef = findNdefTlv(data, have)) == null || have < ndef[0] + ndef[1]) {
+            if (have >= data.length)
+                throw new TagManager.TagManagerException(ndef == null ? "No Ndef message on tag" : "Incomplete data on tag");
+            fetch(transport, ndef == null ? have + READ_SIZE : ndef[0] + ndef[1]);
+        }
+
+        if (ndef[1] == 0)
+            throw new TagManager.TagManagerException("Tag is empty");
+
+        return Arrays.copyOfRange(data, ndef[0], ndef[0] + ndef[1]);
+    }
+
+    /**
+     * Reads the CC together with the first three pages of the data area and returns the
+     * size of the data area.
+     */
+    int begin(Transport transport) throws TagManager.TagManagerException, IOException {
+        commands = 0;
+        useFastRead = fastRead;
+
+        byte[] first = transceive(transport, new byte[] { CMD_READ, CC_PAGE }, READ_SIZE);
+        int dataSize = parseCapabilityContainer(first, 0);
+
+        cc = Arrays.copyOf(first, PAGE_SIZE);
+        data = new byte[dataSize];
+        have = Math.min(READ_SIZE - PAGE_SIZE, dataSize);
+        System.arraycopy(first, PAGE_SIZE, data, 0, have);
+
+        return dataSize;
+    }
+
+    // Reads on until at least want bytes of the data area, or all of it, are there.
+    void fetch(Transport transport, int want) throws IOException {
+        want = Math.min(want, data.length);
+
+        while (have < want) {
+            int page = DATA_PAGE + have / PAGE_SIZE;
+
+            if (useFastRead) {
+                int maxPages = Math.max(1, transport.getMaxTransceiveLength() / PAGE_SIZE);
+                int pages = Math.min(maxPages, (want - have + PAGE_SIZE - 1) / PAGE_SIZE);
+
+                try {
+                    append(transceive(transport, new byte[] { CMD_FAST_READ, (byte)page, (byte)(page + pages - 1) }, pages * PAGE_SIZE));
+                    continue;
+                } catch(IOException e) {
+                    useFastRead = false;
+                    transport.reconnect();
+                }
+            }
+
+            append(transceive(transport, new byte[] { CMD_READ, (byte)page }, READ_SIZE));
+        }
+    }
+
+    private void append(byte[] res) {
+        int n = Math.min(res.length, data.length - have);
+        System.arraycopy(res, 0, data, have, n);
+        have += n;
+    }
+
+    byte[] getCapabilityContainer() {
+        return cc;
+    }
+
+    // Data area, valid up to getLength().
+    byte[] getData() {
+        return data;
+    }
+
+    int getLength() {
+        return have;
+    }
+
+    private byte[] transceive(Transport transport, byte[] cmd, int expected) throws IOException {
+        byte[] res = transport.transceive(cmd);
+        ++commands;
+
+        if (res == null || res.length < expected)
+            throw new IOException("Unexpected response from tag");
+        return res.length == expected ? res : Arrays.copyOf(res, expected);
+    }
+
+    /**
+     * Checks the capability container at off and returns the size of the data area in bytes.
+     */
+    static int parseCapabilityContainer(byte[] b, int off) throws TagManager.TagManagerException {
+        if ((b[off] & 0xFF) != 0xE1)
+            throw new TagManager.TagManagerException("Tag is not Ndef formatted");
+        if ((b[off + 1] & 0xF0) != 0x10)
+            throw new TagManager.TagManagerException("Unsupported Ndef mapping version");
+        if ((b[off + 3] & 0xF0) != 0)
+            throw new TagManager.TagManagerException("Tag is not readable");
+
+        return (b[off + 2] & 0xFF) * 8;
+    }
+
+    /**
+     * Walks the TLVs in the first len bytes of the data area. Returns the offset and length of
+     * the NDEF message and the offset of its TLV, or null while more bytes are needed to tell.
+     */
+    static int[] findNdefTlv(byte[] data, int len) throws TagManager.TagManagerException {
+        int pos = 0;
+
+        while (pos < len) {
+            int t = data[pos] & 0xFF;
+            if (t == TLV_NULL) {
+                ++pos;
+                continue;
+            }
+            if (t == TLV_TERMINATOR)
+                throw new TagManager.TagManagerException("No Ndef message on tag");
+
+            if (pos + 1 >= len)
+                return null;
+
+            int l = data[pos + 1] & 0xFF;
+            int hdr = 2;
+            if (l == 0xFF) {
+                if (pos + 3 >= len)
+                    return null;
+                l = ((data[pos + 2] & 0xFF) << 8) | (data[pos + 3] & 0xFF);
+                hdr = 4;
+            }
+
+            if (t == TLV_NDEF)
+                return new int[] { pos + hdr, l, pos };
+
+            pos += hdr + l;
+        }
+
+        return null;
+    }
+}
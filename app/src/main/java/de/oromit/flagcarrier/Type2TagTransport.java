@@ -0,0 +1,107 @@
+package de.oromit.flagcarrier;
+
+import android.nfc.NdefMessage;
+import android.nfc.Tag;
+
+import java.io.IOException;
+
+/**
+ * Formatted Type 2 tag written through Type2Writer, so only changed pages go over the air,
+ * and read back with Type2Reader on the same connection.
+ * Locking is left to the framework through Ndef, the dynamic lock bits sit in a different
+ * place on every chip and a wrong guess lands in user memory.
+ */
+class Type2TagTransport implements TagTransport {
+    private final Type2Reader.Transport transport;
+    private final NdefTransport ndef;
+    private final Type2Reader reader = new Type2Reader();
+    private final Type2Writer writer = new Type2Writer();
+
+    private boolean ndefConnected = false;
+    private byte[] cc = null;
+    private int size = 0;
+
+    // Without ndef the tag can't be made read-only.
+    public Type2TagTransport(Type2Reader.Transport transport, NdefTransport ndef) {
+        this.transport = transport;
+        this.ndef = ndef;
+    }
+
+    // Returns null unless the tag is a Type 2 tag that is NDEF formatted already.
+    public static Type2TagTransport get(Tag tag) {
+        NdefTransport ndef = NdefTransport.get(tag);
+        if (ndef == null)
+            return null;
+        MifareUltralightTransport ul = MifareUltralightTransport.get(tag);
+        return ul != null ? new Type2TagTransport(ul, ndef) : null;
+    }
+
+    public int getPagesWritten() {
+        return writer.getLastPagesWritten();
+    }
+
+    @Override
+    public void connect() throws IOException {
+        transport.connect();
+
+        try {
+            size = reader.begin(transport);
+        } catch(TagManager.TagManagerException e) {
+            throw new IOException(e.getMessage());
+        }
+        cc = reader.getCapabilityContainer();
+    }
+
+    @Override
+    public boolean isWritable() {
+        return (cc[3] & 0x0F) == 0;
+    }
+
+    // Assumes the NDEF TLV comes first, Type2Writer checks the actual layout.
+    @Override
+    public int getMaxSize() {
+        return size - 4 >= 0xFF ? size - 4 : Math.min(size - 2, 0xFE);
+    }
+
+    @Override
+    public boolean writeNdefMessage(NdefMessage msg, byte[] encoded, boolean makeReadOnly) throws IOException {
+        try {
+            if (!writer.write(transport, encoded))
+                throw new IOException("Tag is not Ndef formatted");
+        } catch(TagManager.TagManagerException e) {
+            throw new IOException(e.getMessage());
+        }
+        return false;
+    }
+
+    @Override
+    public byte[] readNdefMessage() throws IOException {
+        try {
+            return reader.readBytes(transport);
+        } catch(TagManager.TagManagerException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    // Only one technology can be connected at a time, so this hands the tag over to Ndef.
+    @Override
+    public boolean makeReadOnly() throws IOException {
+        if (ndef == null)
+            return false;
+
+        transport.close();
+        ndef.connect();
+        ndefConnected = true;
+        return ndef.makeReadOnly();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (ndefConnected) {
+            ndefConnected = false;
+            ndef.close();
+        } else {
+            transport.close();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package de.oromit.flagcarrier;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Writes NDEF messages to NFC Forum Type 2 tags page by page, skipping every page that already
+ * holds the right bytes. The NDEF TLV stays where it is. Its length goes to zero before the
+ * first changed data page is written and gets the new value with the last write, so a tag that
+ * is pulled away midway reads as empty instead of holding half a message.
+ * That last write is a single page unless the length field straddles two pages, which the
+ * usual layout with the NDEF TLV first never does.
+ */
+class Type2Writer {
+    static final byte CMD_WRITE = (byte)0xA2;
+    static final int ACK = 0x0A;
+
+    private final Type2Reader reader = new Type2Reader();
+
+    private int pagesWritten = 0;
+    private int pagesTotal = 0;
+    private long writeNanos = 0;
+
+    public void setFastRead(boolean fastRead) {
+        reader.setFastRead(fastRead);
+    }
+
+    // Pages written by the last write, out of getLastPagesTotal.
+    public int getLastPagesWritten() {
+        return pagesWritten;
+    }
+
+    // Pages the last message took up, TLV and terminator included.
+    public int getLastPagesTotal() {
+        return pagesTotal;
+    }
+
+    // Time the last write took, reading the current contents included.
+    public long getLastWriteMillis() {
+        return writeNanos / 1000000;
+    }
+
+    /**
+     * Returns false without writing anything if the tag has no NDEF TLV yet, formatting it is
+     * left to NdefFormatable.
+     */
+    public boolean write(Type2Reader.Transport transport, byte[] b) throws TagManager.TagManagerException, IOException {
+        long start = System.nanoTime();
+        pagesWritten = 0;
+        pagesTotal = 0;
+
+        int size;
+        int[] ndef;
+        try {
+            size = reader.begin(transport);
+            while ((ndef = Type2Reader.findNdefTlv(reader.getData(), reader.getLength())) == null) {
+                if (reader.getLength() >= size)
+                    return false;
+                reader.fetch(transport, reader.getLength() + Type2Reader.READ_SIZE);
+            }
+        } catch(TagManager.TagManagerException e) {
+            return false;
+        }
+
+        if ((reader.getCapabilityContainer()[3] & 0x0F) != 0)
+            throw new TagManager.TagManagerException("Tag is not writable");
+
+        int tlv = ndef[2];
+        int hdr = b.length < 0xFF ? 2 : 4;
+        int end = tlv + hdr + b.length;
+        if (end > size)
+            throw new TagManager.TagManagerException("Tag is too small: " + (end - tlv) + "/" + (size - tlv));
+        if (end < size)
+            ++end;
+
+        int pages = (end + Type2Reader.PAGE_SIZE - 1) / Type2Reader.PAGE_SIZE;
+        reader.fetch(transport, pages * Type2Reader.PAGE_SIZE);
+        pagesTotal = pages - tlv / Type2Reader.PAGE_SIZE;
+
+        // What is on the tag, kept up to date with every write.
+        byte[] cur = Arrays.copyOf(reader.getData(), pages * Type2Reader.PAGE_SIZE);
+
+        byte[] image = cur.clone();
+        image[tlv] = Type2Reader.TLV_NDEF;
+        if (hdr == 2) {
+            image[tlv + 1] = (byte)b.length;
+        } else {
+            image[tlv + 1] = (byte)0xFF;
+            image[tlv + 2] = (byte)(b.length >> 8);
+            image[tlv + 3] = (byte)b.length;
+        }
+        System.arraycopy(b, 0, image, tlv + hdr, b.length);
+        if (tlv + hdr + b.length < end)
+            image[end - 1] = (byte)Type2Reader.TLV_TERMINATOR;
+
+        int firstHeader = tlv / Type2Reader.PAGE_SIZE;
+        int lastHeader = (tlv + hdr - 1) / Type2Reader.PAGE_SIZE;
+
+        boolean dataChanged = false;
+        for (int p = 0; p < pages && !dataChanged; ++p)
+            dataChanged = (p < firstHeader || p > lastHeader) && !samePage(cur, image, p);
+
+        if (dataChanged) {
+            byte[] empty = Arrays.copyOf(image, image.length);
+            for (int i = tlv + hdr - (hdr == 2 ? 1 : 2); i < tlv + hdr; ++i)
+                empty[i] = 0;
+            for (int p = firstHeader; p <= lastHeader; ++p)
+                writePage(transport, cur, empty, p);
+
+            for (int p = 0; p < pages; ++p) {
+                if (p < firstHeader || p > lastHeader)
+                    writePage(transport, cur, image, p);
+            }
+        }
+
+        for (int p = firstHeader; p <= lastHeader; ++p)
+            writePage(transport, cur, image, p);
+
+        writeNanos = System.nanoTime() - start;
+        return true;
+    }
+
+    private static boolean samePage(byte[] a, byte[] b, int page) {
+        int off = page * Type2Reader.PAGE_SIZE;
+        for (int i = off; i < off + Type2Reader.PAGE_SIZE; ++i) {
+            if (a[i] != b[i])
+                return false;
+        }
+        return true;
+    }
+
+    // Page is relative to the data area, nothing is sent if it already matches.
+    private void writePage(Type2Reader.Transport transport, byte[] cur, byte[] src, int page) throws IOException {
+        if (samePage(cur, src, page))
+            return;
+
+        int off = page * Type2Reader.PAGE_SIZE;
+        byte[] cmd = new byte[2 + Type2Reader.PAGE_SIZE];
+        cmd[0] = CMD_WRITE;
+        cmd[1] = (byte)(Type2Reader.DATA_PAGE + page);
+        System.arraycopy(src, off, cmd, 2, Type2Reader.PAGE_SIZE);
+
+        // Some stacks hand the 4-bit NAK back instead of failing the transceive.
+        byte[] res = transport.transceive(cmd);
+        if (res == null || res.length != 1 || (res[0] & 0x0F) != ACK)
+            throw new IOException("Tag refused to write page " + (Type2Reader.DATA_PAGE + page));
+        System.arraycopy(src, off, cur, off, Type2Reader.PAGE_SIZE);
+        ++pagesWritten;
+    }
+}
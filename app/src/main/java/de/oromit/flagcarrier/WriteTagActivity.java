@@ -10,13 +10,17 @@ import android.nfc.Tag;
 import android.preference.PreferenceManager;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
+import android.text.Editable;
 import android.text.TextUtils;
+import android.text.TextWatcher;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import com.hbb20.CountryCodePicker;
@@ -26,11 +30,15 @@ import java.util.Map;
 import java.util.Set;
 
 public class WriteTagActivity extends AppCompatActivity {
+    private static final String TAG = "WriteTagActivity";
+
     private NfcAdapter mAdapter;
     private PendingIntent mPendingIntent;
     private IntentFilter[] mWriteTagFilters;
     private Map<String, String> mWriteData;
     private TagManager mTagManager;
+    private final CapacityPlanner mCapacityPlanner = new CapacityPlanner();
+    private TextView mCapacityText;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -42,6 +50,29 @@ public class WriteTagActivity extends AppCompatActivity {
         Button writeButton = findViewById(R.id.writeTagButton);
         writeButton.setOnClickListener(this::onDoWriteTag);
 
+        mCapacityText = findViewById(R.id.capacityText);
+        TextWatcher capacityWatcher = new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                updateCapacity();
+            }
+        };
+        for(int id: new int[] { R.id.displayNameText, R.id.speedrunNameText, R.id.twitchNameText,
+                R.id.twitterHandleText, R.id.extraDataText }) {
+            EditText e = findViewById(id);
+            e.addTextChangedListener(capacityWatcher);
+        }
+        CountryCodePicker ccp = findViewById(R.id.countryCodePicker);
+        ccp.setOnCountryChangeListener(this::updateCapacity);
+
         mTagManager = new TagManager();
 
         mAdapter = NfcAdapter.getDefaultAdapter(this);
@@ -59,6 +90,12 @@ public class WriteTagActivity extends AppCompatActivity {
         };
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mCapacityPlanner.end();
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         MenuInflater inflater = getMenuInflater();
@@ -72,6 +109,9 @@ public class WriteTagActivity extends AppCompatActivity {
             case R.id.fillSetOption:
                 fillWithSettings();
                 return true;
+            case R.id.bulkWriteOption:
+                startActivity(new Intent(this, BulkWriteActivity.class));
+                return true;
             default:
                 return super.onOptionsItemSelected(item);
         }
@@ -122,13 +162,20 @@ public class WriteTagActivity extends AppCompatActivity {
     }
 
     private Map<String, String> getValidatedDataMap() {
+        return getDataMap(true);
+    }
+
+    // Null if the form is invalid, showErrors tells the user why.
+    private Map<String, String> getDataMap(boolean showErrors) {
         Map<String, String> kvMap = new HashMap<>();
 
         String dsplname = getFieldText(R.id.displayNameText).trim();
 
         if(dsplname.isEmpty()) {
-            Toast.makeText(this, "A display name is required", Toast.LENGTH_SHORT).show();
-            mWriteData = null;
+            if(showErrors) {
+                Toast.makeText(this, "A display name is required", Toast.LENGTH_SHORT).show();
+                mWriteData = null;
+            }
             return null;
         }
 
@@ -145,15 +192,18 @@ public class WriteTagActivity extends AppCompatActivity {
                 continue;
             String[] parts = line.split("=", 2);
             if(parts.length != 2) {
-                Toast.makeText(this, "Invalid extra data", Toast.LENGTH_SHORT).show();
+                if(showErrors)
+                    Toast.makeText(this, "Invalid extra data", Toast.LENGTH_SHORT).show();
                 return null;
             }
             if(parts[0].length() > 32) {
-                Toast.makeText(this, "Extra data key length > 32", Toast.LENGTH_SHORT).show();
+                if(showErrors)
+                    Toast.makeText(this, "Extra data key length > 32", Toast.LENGTH_SHORT).show();
                 return null;
             }
             if(parts[1].length() > 255) {
-                Toast.makeText(this, "Extra data value length > 255", Toast.LENGTH_SHORT).show();
+                if(showErrors)
+                    Toast.makeText(this, "Extra data value length > 255", Toast.LENGTH_SHORT).show();
                 return null;
             }
             kvMap.put(parts[0], parts[1]);
@@ -162,6 +212,36 @@ public class WriteTagActivity extends AppCompatActivity {
         return kvMap;
     }
 
+    // Runs on every keystroke, so the size is known before a tag is tapped.
+    private void updateCapacity() {
+        Map<String, String> data = getDataMap(false);
+        if(data == null) {
+            mCapacityText.setText("");
+            return;
+        }
+
+        CapacityPlanner.Plan plan;
+        try {
+            plan = mCapacityPlanner.plan(data, KeyMaterial.getInstance(this).getSigner() != null);
+        } catch(TagManager.TagManagerException e) {
+            mCapacityText.setText(e.getMessage());
+            return;
+        }
+
+        CapacityPlanner.Chip chip = plan.getSmallestChip();
+        StringBuilder text = new StringBuilder(chip != null
+                ? getString(R.string.capacity_fits, plan.size, chip.name)
+                : getString(R.string.capacity_too_big, plan.size));
+        if(plan.signed)
+            text.append(getString(R.string.capacity_signed, PayloadFormat.SIGNED_HEADER_SIZE));
+        if(plan.drop != null) {
+            text.append("\n");
+            text.append(getString(R.string.capacity_drop, TextUtils.join(", ", plan.drop), plan.dropTarget.name));
+        }
+
+        mCapacityText.setText(text);
+    }
+
     private void onDoWriteTag(View v) {
         mWriteData = getValidatedDataMap();
         Toast.makeText(this, "Scan tag now!", Toast.LENGTH_SHORT).show();
@@ -215,17 +295,26 @@ public class WriteTagActivity extends AppCompatActivity {
             mTagManager.loadKeysFromPrefs(this);
             mTagManager.setExtraSignDataFromTag(tag);
 
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+            boolean lock = prefs.getBoolean("lock_written_tags", false);
+
             NdefMessage msg = mTagManager.generateMessage(mWriteData);
-            mTagManager.writeToTag(tag, msg);
+            mTagManager.writeToTag(tag, msg, lock);
 
             mWriteData = null;
-            Toast.makeText(this, "Success", Toast.LENGTH_LONG).show();
+            Toast.makeText(this, mTagManager.isLastWriteVerified() ? "Success, verified" : "Success",
+                    Toast.LENGTH_LONG).show();
+
+            int pages = mTagManager.getLastPagesWritten();
+            Log.d(TAG, "Tag written in " + mTagManager.getLastWriteMillis() + " ms"
+                    + (pages >= 0 ? ", " + pages + " pages" : ""));
         } catch(TagManager.TagManagerException e) {
             Toast.makeText(this, e.getMessage(), Toast.LENGTH_LONG).show();
         } finally {
             mTagManager.setPrivateKey(null);
             mTagManager.setPublicKey(null);
             mTagManager.setExtraSignData(null);
+            mTagManager.close();
         }
     }
 }
@@ -0,0 +1,38 @@
+package de.oromit.flagcarrier;
+
+import org.junit.Assume;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Bytes allocated by the current thread, as HotSpot counts them. Tests using it are skipped
+ * on VMs that don't count.
+ */
+class Allocations {
+    private static final com.sun.management.ThreadMXBean bean = threadBean();
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        java.lang.management.ThreadMXBean b = ManagementFactory.getThreadMXBean();
+        if (!(b instanceof com.sun.management.ThreadMXBean))
+            return null;
+
+        com.sun.management.ThreadMXBean tb = (com.sun.management.ThreadMXBean)b;
+        if (!tb.isThreadAllocatedMemorySupported())
+            return null;
+        tb.setThreadAllocatedMemoryEnabled(true);
+        return tb;
+    }
+
+    static void assumeSupported() {
+        Assume.assumeTrue("Allocation counting not supported", bean != null);
+    }
+
+    static long current() {
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    // Heap size of a byte array of that length with compressed oops, the largest common layout.
+    static long arraySize(int length) {
+        return (16 + length + 7) & ~7L;
+    }
+}
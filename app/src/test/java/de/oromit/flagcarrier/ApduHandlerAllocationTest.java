@@ -0,0 +1,114 @@
+package de.oromit.flagcarrier;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A simulated 100-read session may only allocate the response arrays the framework needs.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ApduHandlerAllocationTest {
+    private static final int READS = 100;
+    private static final int READ_SIZE = 16;
+    private static final int WARMUP_SESSIONS = 2000;
+
+    // Room for a stray allocation of the measuring itself, far below one response.
+    private static final long SLACK = 32;
+
+    private static final byte[] SELECT = new byte[5 + ApduHandler.FLAGCARRIER_AID.length];
+    private static final byte[] UPDATE = new byte[5 + 16];
+
+    static {
+        SELECT[1] = ApduHandler.SELECT_INS;
+        SELECT[2] = 0x04;
+        SELECT[4] = (byte)ApduHandler.FLAGCARRIER_AID.length;
+        System.arraycopy(ApduHandler.FLAGCARRIER_AID, 0, SELECT, 5, ApduHandler.FLAGCARRIER_AID.length);
+
+        UPDATE[1] = ApduHandler.UPDATEBINARY_INS;
+        UPDATE[4] = 16;
+    }
+
+    private final byte[][] reads = new byte[READS][];
+    private final int[] responseLengths = new int[READS];
+
+    private ApduHandler handler() throws Exception {
+        AtomicReference<PublishedData> published = new AtomicReference<>(
+                PublishedData.EMPTY.withData(PreparedMessage.encode(Profiles.sample())));
+
+        ApduHandler handler = new ApduHandler(published, null, null, false);
+        handler.setSigner(new CryptoManager.PreparedSigner(CryptoManager.genKeyPair().PrivateKey));
+        return handler;
+    }
+
+    // Reads the message READ_SIZE bytes at a time, over and over.
+    private void session(ApduHandler handler) {
+        handler.process(SELECT);
+        handler.process(UPDATE);
+
+        for (int i = 0; i < READS; ++i)
+            responseLengths[i] = handler.process(reads[i]).length;
+
+        handler.deactivate();
+    }
+
+    @Test
+    public void readsOnlyAllocateTheResponse() throws Exception {
+        Allocations.assumeSupported();
+        ApduHandler handler = handler();
+
+        handler.process(SELECT);
+        handler.process(UPDATE);
+        int messageSize = 0;
+        for (int off = 0; ; off += READ_SIZE) {
+            byte[] res = handler.process(read(off));
+            if (res.length == 2)
+                break;
+            messageSize = off + res.length - 2;
+        }
+        assertTrue(messageSize > READ_SIZE);
+
+        for (int i = 0; i < READS; ++i)
+            reads[i] = read((i * READ_SIZE) % messageSize);
+
+        for (int i = 0; i < WARMUP_SESSIONS; ++i)
+            session(handler);
+
+        handler.process(SELECT);
+        handler.process(UPDATE);
+
+        long start = Allocations.current();
+        for (int i = 0; i < READS; ++i)
+            responseLengths[i] = handler.process(reads[i]).length;
+        long allocated = Allocations.current() - start;
+
+        long responses = 0;
+        for (int len : responseLengths)
+            responses += Allocations.arraySize(len);
+
+        assertTrue(allocated + " bytes for " + responses + " bytes of responses", allocated <= responses + SLACK);
+    }
+
+    @Test
+    public void selectAllocatesNothing() throws Exception {
+        Allocations.assumeSupported();
+        ApduHandler handler = handler();
+
+        for (int i = 0; i < 100000; ++i)
+            handler.process(SELECT);
+
+        long start = Allocations.current();
+        for (int i = 0; i < READS; ++i)
+            assertEquals(2, handler.process(SELECT).length);
+        assertTrue(Allocations.current() - start <= SLACK);
+    }
+
+    private static byte[] read(int offset) {
+        return new byte[] { 0, ApduHandler.READBINARY_INS, (byte)(offset >> 8), (byte)offset, (byte)READ_SIZE };
+    }
+}
@@ -0,0 +1,279 @@
+package de.oromit.flagcarrier;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Drives the card side of the FlagCarrier AID in-process: scripted reader sessions, randomized
+ * APDU sequences and the parameter checks of SELECT, UPDATE BINARY and READ BINARY. The benchmark
+ * checks the latency percentiles of SELECT and READ.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ApduHarnessTest {
+    private static final int SESSIONS = 2000;
+    private static final int RANDOM_APDUS = 200000;
+    private static final int FUZZ_ROUNDS = 100000;
+
+    private final AtomicReference<PublishedData> published = new AtomicReference<>(PublishedData.EMPTY);
+    private CryptoManager.KeyPair keys;
+    private Map<String, String> profile;
+
+    @Before
+    public void publish() throws Exception {
+        keys = CryptoManager.genKeyPair();
+        profile = Profiles.sample();
+        published.set(PublishedData.EMPTY.withData(PreparedMessage.encode(profile)));
+    }
+
+    private ApduHandler handler(ApduStats stats) {
+        ApduHandler handler = new ApduHandler(published, stats, null, false);
+        handler.setSigner(new CryptoManager.PreparedSigner(keys.PrivateKey));
+        return handler;
+    }
+
+    private Map<String, String> readOnce(ApduHandler handler, boolean extendedLength) throws Exception {
+        TagManager tagManager = new TagManager();
+        tagManager.setPublicKey(keys.PublicKey);
+        try {
+            return new HCEReader(tagManager).read(new LoopbackTransport(handler, extendedLength));
+        } finally {
+            handler.deactivate();
+            tagManager.close();
+        }
+    }
+
+    @Test
+    public void scriptedSessionsVerify() throws Exception {
+        ApduHandler handler = handler(null);
+
+        for (boolean extended : new boolean[] { false, true }) {
+            Map<String, String> data = readOnce(handler, extended);
+            assertEquals("true", data.get("sig_valid"));
+            for (Map.Entry<String, String> e : profile.entrySet())
+                assertEquals(e.getValue(), data.get(e.getKey()));
+        }
+    }
+
+    @Test
+    public void unsignedAnswerIsRefused() throws Exception {
+        ApduHandler handler = new ApduHandler(published, null, null, false);
+
+        try {
+            readOnce(handler, false);
+            fail("Unsigned answer accepted with a trusted key set");
+        } catch(TagManager.TagManagerException e) {
+            assertEquals("Missing signature", e.getMessage());
+        }
+    }
+
+    @Test
+    public void answerSignedByAnotherKeyIsRefused() throws Exception {
+        ApduHandler handler = new ApduHandler(published, null, null, false);
+        handler.setSigner(new CryptoManager.PreparedSigner(CryptoManager.genKeyPair().PrivateKey));
+
+        try {
+            readOnce(handler, false);
+            fail("Foreign signature accepted");
+        } catch(TagManager.TagManagerException e) {
+            assertEquals("Invalid signature!", e.getMessage());
+        }
+    }
+
+    @Test
+    public void scriptedErrors() {
+        ApduHandler handler = handler(null);
+
+        assertArrayEquals(ApduHandler.STATUS_FAILED, handler.process(null));
+        assertArrayEquals(ApduHandler.STATUS_FAILED, handler.process(new byte[] { 0, ApduHandler.SELECT_INS, 4, 0 }));
+        assertArrayEquals(ApduHandler.CLA_NOT_SUPPORTED, handler.process(new byte[] { (byte)0x80, ApduHandler.SELECT_INS, 4, 0, 0 }));
+        assertArrayEquals(ApduHandler.INS_NOT_SUPPORTED, handler.process(new byte[] { 0, (byte)0xB2, 0, 0, 0 }));
+        assertArrayEquals(ApduHandler.FILE_NOT_FOUND, handler.process(new byte[] { 0, ApduHandler.SELECT_INS, 4, 0, 2, 1, 2 }));
+
+        // Nothing to read before the challenge.
+        assertArrayEquals(ApduHandler.FILE_NOT_FOUND, handler.process(read(0, 16)));
+
+        // Challenge longer than the APDU.
+        assertArrayEquals(ApduHandler.STATUS_FAILED, handler.process(new byte[] { 0, ApduHandler.UPDATEBINARY_INS, 0, 0, 16, 1, 2 }));
+
+        published.set(PublishedData.EMPTY);
+        assertArrayEquals(ApduHandler.FILE_NOT_FOUND, handler.process(update(0, 16)));
+    }
+
+    @Test
+    public void maxReadOnlyThroughGetData() {
+        ApduHandler handler = handler(null);
+        byte[] aid = ApduHandler.FLAGCARRIER_AID;
+        byte[] select = new byte[5 + aid.length + 1];
+        select[1] = ApduHandler.SELECT_INS;
+        select[2] = 4;
+        select[4] = (byte)aid.length;
+        System.arraycopy(aid, 0, select, 5, aid.length);
+
+        // Le or not, SELECT answers the bare status word like it always did.
+        assertArrayEquals(ApduHandler.STATUS_SUCCESS, handler.process(Arrays.copyOf(select, select.length - 1)));
+        assertArrayEquals(ApduHandler.STATUS_SUCCESS, handler.process(select));
+        assertArrayEquals(ApduHandler.STATUS_FAILED, handler.process(Arrays.copyOf(select, select.length + 1)));
+
+        byte[] res = handler.process(new byte[] { 0, ApduHandler.GETDATA_INS, (byte)0xDF, 0x01, 2 });
+        assertArrayEquals(new byte[] { (byte)(ApduHandler.MAX_EXTENDED_READ >> 8), (byte)ApduHandler.MAX_EXTENDED_READ,
+                (byte)0x90, 0x00 }, res);
+        assertArrayEquals(ApduHandler.DATA_NOT_FOUND, handler.process(new byte[] { 0, ApduHandler.GETDATA_INS, 0, 0x5A, 0 }));
+    }
+
+    @Test
+    public void fuzzUpdateAddress() {
+        ApduHandler handler = handler(null);
+        Random rnd = new Random(19);
+
+        for (int i = 0; i < FUZZ_ROUNDS; ++i) {
+            // Half of them in the interesting range around the 1024 limit.
+            int address = rnd.nextBoolean() ? rnd.nextInt(0x10000) : 1020 + rnd.nextInt(8);
+            if (i % 97 == 0)
+                address = 0;
+
+            byte[] res = handler.process(update(address, 1 + rnd.nextInt(32)));
+            if (address == 0)
+                assertArrayEquals(ApduHandler.STATUS_SUCCESS, res);
+            else
+                assertArrayEquals("Address " + address, ApduHandler.WRONG_PARAMETERS, res);
+        }
+    }
+
+    @Test
+    public void fuzzReadOffset() {
+        ApduHandler handler = handler(null);
+        assertArrayEquals(ApduHandler.STATUS_SUCCESS, handler.process(update(0, 16)));
+
+        byte[] whole = readAll(handler);
+        Random rnd = new Random(20);
+
+        for (int i = 0; i < FUZZ_ROUNDS; ++i) {
+            int r = rnd.nextInt(4);
+            int offset = r == 0 ? rnd.nextInt(0x10000)
+                    : r == 1 ? 0x7FF8 + rnd.nextInt(16)
+                    : rnd.nextInt(whole.length + 8);
+            int le = rnd.nextInt(256);
+            boolean extended = rnd.nextInt(4) == 0;
+            if (extended)
+                le = rnd.nextInt(0x10000);
+
+            byte[] res = handler.process(extended ? readExtended(offset, le) : read(offset, le));
+
+            if (offset >= 0x8000) {
+                assertArrayEquals("Offset " + offset, ApduHandler.WRONG_PARAMETERS, res);
+                continue;
+            }
+
+            int max = extended ? ApduHandler.MAX_EXTENDED_READ : ApduHandler.MAX_SHORT_READ;
+            int want = le <= 0 || le > max ? max : le;
+            int n = Math.max(0, Math.min(want, whole.length - offset));
+
+            assertEquals("Offset " + offset + ", Le " + le, n + 2, res.length);
+            assertEquals((byte)0x90, res[n]);
+            assertEquals(0, res[n + 1]);
+            if (n > 0)
+                assertArrayEquals(Arrays.copyOfRange(whole, offset, offset + n), Arrays.copyOf(res, n));
+        }
+    }
+
+    @Test
+    public void randomSequencesOnlyAnswerKnownStatusWords() {
+        ApduHandler handler = handler(null);
+        Random rnd = new Random(21);
+        byte[][] known = {
+                ApduHandler.STATUS_SUCCESS, ApduHandler.STATUS_FAILED, ApduHandler.CLA_NOT_SUPPORTED,
+                ApduHandler.INS_NOT_SUPPORTED, ApduHandler.FILE_NOT_FOUND, ApduHandler.WRONG_PARAMETERS,
+                ApduHandler.DATA_NOT_FOUND
+        };
+        byte[] ins = { ApduHandler.SELECT_INS, ApduHandler.UPDATEBINARY_INS, ApduHandler.READBINARY_INS, ApduHandler.GETDATA_INS };
+
+        for (int i = 0; i < RANDOM_APDUS; ++i) {
+            byte[] apdu = new byte[rnd.nextInt(24)];
+            rnd.nextBytes(apdu);
+            if (apdu.length > 1 && rnd.nextInt(4) != 0) {
+                apdu[0] = 0;
+                apdu[1] = ins[rnd.nextInt(ins.length)];
+            }
+            if (apdu.length > 3 && rnd.nextBoolean()) {
+                apdu[2] = 0;
+                apdu[3] = 0;
+            }
+            if (rnd.nextInt(50) == 0)
+                handler.deactivate();
+
+            byte[] res = handler.process(apdu);
+            assertTrue(res.length >= 2);
+
+            byte[] sw = Arrays.copyOfRange(res, res.length - 2, res.length);
+            boolean ok = false;
+            for (byte[] k : known)
+                ok |= Arrays.equals(k, sw);
+            assertTrue("Unknown status word for " + Arrays.toString(apdu), ok);
+        }
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        Benchmarks.assumeEnabled();
+        ApduStats stats = new ApduStats();
+        ApduHandler handler = handler(stats);
+
+        // Warm up, then keep only what the measured sessions record.
+        for (int i = 0; i < SESSIONS / 4; ++i)
+            readOnce(handler, i % 2 == 0);
+        stats.reset();
+
+        for (int i = 0; i < SESSIONS; ++i)
+            readOnce(handler, i % 2 == 0);
+
+        for (int kind = ApduStats.SELECT; kind <= ApduStats.READ; ++kind) {
+            assertTrue(stats.getCount(kind) >= SESSIONS);
+            assertTrue(stats.getPercentileMicros(kind, 0.5) <= stats.getPercentileMicros(kind, 0.99));
+        }
+
+        // Only UPDATE signs, everything else has to stay far below a millisecond.
+        assertTrue(stats.getPercentileMicros(ApduStats.SELECT, 0.99) < 1000);
+        assertTrue(stats.getPercentileMicros(ApduStats.READ, 0.99) < 1000);
+    }
+
+    private static byte[] readAll(ApduHandler handler) {
+        byte[] whole = new byte[0];
+        while (true) {
+            byte[] res = handler.process(read(whole.length, 0));
+            if (res.length == 2)
+                return whole;
+            int n = whole.length;
+            whole = Arrays.copyOf(whole, n + res.length - 2);
+            System.arraycopy(res, 0, whole, n, res.length - 2);
+        }
+    }
+
+    private static byte[] update(int address, int length) {
+        byte[] apdu = new byte[5 + length];
+        apdu[1] = ApduHandler.UPDATEBINARY_INS;
+        apdu[2] = (byte)(address >> 8);
+        apdu[3] = (byte)address;
+        apdu[4] = (byte)length;
+        return apdu;
+    }
+
+    private static byte[] read(int offset, int le) {
+        return new byte[] { 0, ApduHandler.READBINARY_INS, (byte)(offset >> 8), (byte)offset, (byte)le };
+    }
+
+    private static byte[] readExtended(int offset, int le) {
+        return new byte[] { 0, ApduHandler.READBINARY_INS, (byte)(offset >> 8), (byte)offset, 0, (byte)(le >> 8), (byte)le };
+    }
+}
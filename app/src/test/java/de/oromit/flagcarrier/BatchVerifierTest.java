@@ -0,0 +1,112 @@
+package de.oromit.flagcarrier;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Audit of a crate of signed tag payloads, a few of them tampered with, each bound to its own
+ * UID. The benchmark checks that the pool verifies faster than a single thread.
+ */
+public class BatchVerifierTest {
+    private static final int TAGS = 600;
+
+    private final List<byte[]> payloads = new ArrayList<>();
+    private final List<byte[]> uids = new ArrayList<>();
+    private final Set<Integer> tampered = new HashSet<>();
+    private final Set<Integer> broken = new HashSet<>();
+
+    private TagManager crate() throws Exception {
+        CryptoManager.KeyPair keys = CryptoManager.genKeyPair();
+        CryptoManager.PreparedSigner signer = new CryptoManager.PreparedSigner(keys.PrivateKey);
+
+        Random rnd = new Random(11);
+        List<Map<String, String>> profiles = Profiles.corpus(TAGS, 11);
+        PayloadEncoder encoder = new PayloadEncoder();
+
+        for (int i = 0; i < TAGS; ++i) {
+            byte[] uid = new byte[8];
+            rnd.nextBytes(uid);
+
+            byte[] payload = encoder.encode(profiles.get(i), signer, uid);
+            if (i % 37 == 5) {
+                payload[1 + rnd.nextInt(CryptoManager.SIGNATURE_SIZE)] ^= 0x10;
+                tampered.add(i);
+            } else if (i % 101 == 7) {
+                payload = new byte[] { (byte)PayloadFormat.PAYLOAD_SIGNED, 1, 2, 3 };
+                broken.add(i);
+            }
+
+            payloads.add(payload);
+            uids.add(uid);
+        }
+        encoder.end();
+
+        TagManager auditor = new TagManager();
+        auditor.setPublicKey(keys.PublicKey);
+        return auditor;
+    }
+
+    @Test
+    public void findsTheBadSignatures() throws Exception {
+        TagManager auditor = crate();
+        BatchVerifier verifier = new BatchVerifier(4);
+
+        List<TagView> views = verifier.parseBatch(auditor, payloads, uids);
+        assertEquals(TAGS, views.size());
+
+        for (int i = 0; i < TAGS; ++i) {
+            if (broken.contains(i)) {
+                assertNull(views.get(i));
+                continue;
+            }
+            assertEquals("Tag " + i, !tampered.contains(i), views.get(i).getSignatureValid());
+        }
+
+        // Bound to the UID, the same payload on another tag doesn't verify.
+        List<byte[]> shifted = new ArrayList<>(uids.subList(1, TAGS));
+        shifted.add(uids.get(0));
+        for (TagView view : verifier.parseBatch(auditor, payloads, shifted)) {
+            if (view != null)
+                assertEquals(false, view.getSignatureValid());
+        }
+
+        verifier.shutdown();
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        Benchmarks.assumeEnabled();
+        TagManager auditor = crate();
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        BatchVerifier single = new BatchVerifier(1);
+        BatchVerifier pool = new BatchVerifier(threads);
+
+        // The first rounds warm up the JIT.
+        double singleRate = 0;
+        double poolRate = 0;
+        for (int round = 0; round < 3; ++round) {
+            single.parseBatch(auditor, payloads, uids);
+            singleRate = single.getLastSignaturesPerSecond();
+            pool.parseBatch(auditor, payloads, uids);
+            poolRate = pool.getLastSignaturesPerSecond();
+        }
+
+        single.shutdown();
+        pool.shutdown();
+
+        assertTrue(singleRate > 0);
+        if (threads > 1)
+            assertTrue(poolRate + " signatures/s on " + threads + " threads, " + singleRate + " on one", poolRate > singleRate);
+    }
+}
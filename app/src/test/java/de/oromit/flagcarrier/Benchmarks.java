@@ -0,0 +1,13 @@
+package de.oromit.flagcarrier;
+
+import org.junit.Assume;
+
+/**
+ * Timing runs take long and only mean something on a quiet machine, so tests using it are
+ * skipped unless the unit tests run with -Pbenchmarks.
+ */
+class Benchmarks {
+    static void assumeEnabled() {
+        Assume.assumeTrue("Benchmarks not enabled", Boolean.getBoolean("benchmarks"));
+    }
+}
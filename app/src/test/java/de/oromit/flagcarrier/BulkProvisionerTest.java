@@ -0,0 +1,126 @@
+package de.oromit.flagcarrier;
+
+import android.nfc.NdefMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A roster written to SimulatedTags: roster order, signatures bound to every tag's UID, failed
+ * writes staying for the next tap and resuming from the saved state.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class BulkProvisionerTest {
+    private static final int ROSTER_SIZE = 40;
+    private static final int TAG_SIZE = 496;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final TagManager reader = new TagManager();
+    private CryptoManager.KeyPair keys;
+    private List<Map<String, String>> roster;
+
+    @Before
+    public void setUp() throws Exception {
+        keys = CryptoManager.genKeyPair();
+        reader.setPublicKey(keys.PublicKey);
+        roster = Profiles.corpus(ROSTER_SIZE, 24);
+    }
+
+    @After
+    public void close() {
+        reader.close();
+    }
+
+    @Test
+    public void writesTheRosterInOrder() throws Exception {
+        BulkProvisioner p = new BulkProvisioner(roster, new CryptoManager.PreparedSigner(keys.PrivateKey), null);
+        p.start();
+
+        try {
+            for (int i = 0; i < ROSTER_SIZE; ++i) {
+                byte[] uid = uid(i);
+                SimulatedTag tag = new SimulatedTag(TAG_SIZE);
+
+                BulkProvisioner.Entry e = p.write(new TagSession(tag), uid, extraSignData(uid));
+                assertEquals(i + 1, e.number);
+                assertEquals(BulkProvisioner.Status.WRITTEN, e.getStatus());
+
+                reader.setExtraSignData(extraSignData(uid));
+                Map<String, String> data = reader.parseMessage(new NdefMessage(tag.getContents()));
+                assertEquals("true", data.get("sig_valid"));
+                assertEquals(roster.get(i).get("display_name"), data.get("display_name"));
+            }
+
+            assertEquals(ROSTER_SIZE, p.getWrittenCount());
+            assertNull(p.write(new TagSession(new SimulatedTag(TAG_SIZE)), uid(0), extraSignData(uid(0))));
+        } finally {
+            p.shutdown();
+        }
+    }
+
+    @Test
+    public void failedWriteStaysForTheNextTap() throws Exception {
+        BulkProvisioner p = new BulkProvisioner(roster, null, null);
+
+        try {
+            BulkProvisioner.Entry e = p.write(new TagSession(new SimulatedTag(16)), uid(0), extraSignData(uid(0)));
+            assertEquals(1, e.number);
+            assertEquals(BulkProvisioner.Status.READY, e.getStatus());
+            assertTrue(e.getError(), e.getError().startsWith("Tag is too small"));
+
+            e = p.write(new TagSession(new SimulatedTag(TAG_SIZE)), uid(0), extraSignData(uid(0)));
+            assertEquals(1, e.number);
+            assertEquals(BulkProvisioner.Status.WRITTEN, e.getStatus());
+            assertNull(e.getError());
+        } finally {
+            p.shutdown();
+        }
+    }
+
+    @Test
+    public void resumesAfterTheLastWrittenEntry() throws Exception {
+        File state = new File(folder.getRoot(), "roster.json");
+        BulkProvisioner p = new BulkProvisioner(roster, null, state);
+        for (int i = 0; i < 3; ++i)
+            p.write(new TagSession(new SimulatedTag(TAG_SIZE)), uid(i), extraSignData(uid(i)));
+        p.shutdown();
+
+        BulkProvisioner resumed = BulkProvisioner.load(state, null);
+        try {
+            assertEquals(3, resumed.getWrittenCount());
+            assertEquals("0400000000000002", resumed.getEntries().get(2).getUid());
+
+            BulkProvisioner.Entry e = resumed.write(new TagSession(new SimulatedTag(TAG_SIZE)), uid(3), extraSignData(uid(3)));
+            assertEquals(4, e.number);
+        } finally {
+            resumed.shutdown();
+        }
+    }
+
+    private static byte[] uid(int i) {
+        return new byte[] { 0x04, 0, 0, 0, 0, 0, 0, (byte)i };
+    }
+
+    // What TagManager.extraSignDataFromTag makes of an Ultralight.
+    private static byte[] extraSignData(byte[] uid) {
+        byte[] b = Arrays.copyOf(uid, uid.length + 1);
+        b[uid.length] = (byte)0xAA;
+        return b;
+    }
+}
@@ -0,0 +1,111 @@
+package de.oromit.flagcarrier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * CapacityPlanner against the messages TagManager really generates, and the fields it
+ * suggests leaving out.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class CapacityPlannerTest {
+    private static final byte[] UID = { 0x04, 0x11, 0x22, 0x33, 0x44, 0x55, 0x66 };
+
+    private final CapacityPlanner planner = new CapacityPlanner();
+    private final TagManager signing = new TagManager();
+    private final TagManager plain = new TagManager();
+
+    @Before
+    public void generate() throws Exception {
+        signing.setPrivateKey(CryptoManager.genKeyPair().PrivateKey);
+        signing.setExtraSignData(UID);
+    }
+
+    @After
+    public void close() {
+        planner.end();
+        signing.close();
+        plain.close();
+    }
+
+    @Test
+    public void sizeMatchesTheMessage() throws Exception {
+        for (Map<String, String> data : Profiles.corpus(200, 25)) {
+            assertEquals(plain.generateMessage(data).toByteArray().length, planner.plan(data, false).size);
+            assertEquals(signing.generateMessage(data).toByteArray().length, planner.plan(data, true).size);
+        }
+    }
+
+    @Test
+    public void longFieldsTakeTheLongTlvLength() throws Exception {
+        Map<String, String> data = Profiles.sample();
+        data.put("notes", letters(400));
+
+        CapacityPlanner.Plan plan = planner.plan(data, true);
+        assertTrue(plan.payloadSize >= 0xFF);
+        assertEquals(signing.generateMessage(data).toByteArray().length, plan.size);
+    }
+
+    @Test
+    public void dropsFieldsToFitASmallerChip() throws Exception {
+        Map<String, String> data = Profiles.sample();
+        data.put("notes", letters(60));
+
+        CapacityPlanner.Plan plan = planner.plan(data, false);
+        CapacityPlanner.Chip smallest = CapacityPlanner.CHIPS[0];
+        assertFalse(plan.fits(smallest));
+        assertSame(smallest, plan.dropTarget);
+        assertNotNull(plan.drop);
+        assertFalse(plan.drop.contains("display_name") || plan.drop.contains("country_code"));
+
+        for (String key : plan.drop)
+            data.remove(key);
+        assertTrue(planner.plan(data, false).fits(smallest));
+    }
+
+    @Test
+    public void requiredFieldsAreNeverDropped() throws Exception {
+        Map<String, String> data = Profiles.sample();
+        data.put("display_name", letters(200));
+        data.remove("speedruncom_name");
+        data.remove("twitch_name");
+        data.remove("twitter_handle");
+
+        CapacityPlanner.Plan plan = planner.plan(data, false);
+        assertFalse(plan.fits(CapacityPlanner.CHIPS[0]));
+        assertNull(plan.drop);
+        assertNull(plan.dropTarget);
+    }
+
+    @Test
+    public void unchangedInputKeepsThePlan() throws Exception {
+        Map<String, String> data = Profiles.sample();
+        CapacityPlanner.Plan plan = planner.plan(data, true);
+
+        assertSame(plan, planner.plan(Profiles.sample(), true));
+        assertNotSame(plan, planner.plan(data, false));
+    }
+
+    // Random letters, so the codec can't squeeze them much.
+    private static String letters(int count) {
+        Random rnd = new Random(count);
+        char[] c = new char[count];
+        for (int i = 0; i < c.length; ++i)
+            c[i] = (char)('a' + rnd.nextInt(26));
+        return new String(c);
+    }
+}
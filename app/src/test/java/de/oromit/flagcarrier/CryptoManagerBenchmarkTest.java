@@ -0,0 +1,84 @@
+package de.oromit.flagcarrier;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The prepared signer and verifier must produce and accept the very same signatures as the
+ * static calls. The benchmark checks that signing is faster and verifying keeps up.
+ */
+public class CryptoManagerBenchmarkTest {
+    private static final int WARMUP = 500;
+    private static final int RUNS = 2000;
+
+    @Test
+    public void preparedMatchesStatic() throws Exception {
+        CryptoManager.KeyPair keys = CryptoManager.genKeyPair();
+        CryptoManager.PreparedSigner signer = new CryptoManager.PreparedSigner(keys.PrivateKey);
+        CryptoManager.PreparedVerifier verifier = new CryptoManager.PreparedVerifier(keys.PublicKey);
+
+        byte[] msg = new byte[120];
+        for (int i = 0; i < msg.length; ++i)
+            msg[i] = (byte)i;
+
+        byte[] sig = new byte[CryptoManager.SIGNATURE_SIZE];
+        signer.sign(msg, 0, msg.length, sig, 0);
+        assertArrayEquals(CryptoManager.signDetached(msg, keys.PrivateKey), sig);
+        assertTrue(verifier.verify(sig, 0, msg, 0, msg.length));
+        assertTrue(CryptoManager.verifyDetached(sig, msg, keys.PublicKey));
+
+        msg[0] ^= 1;
+        assertFalse(verifier.verify(sig, 0, msg, 0, msg.length));
+        assertFalse(CryptoManager.verifyDetached(sig, msg, keys.PublicKey));
+        msg[0] ^= 1;
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        Benchmarks.assumeEnabled();
+        CryptoManager.KeyPair keys = CryptoManager.genKeyPair();
+        CryptoManager.PreparedSigner signer = new CryptoManager.PreparedSigner(keys.PrivateKey);
+        CryptoManager.PreparedVerifier verifier = new CryptoManager.PreparedVerifier(keys.PublicKey);
+
+        // About a signed profile plus a UID.
+        byte[] msg = new byte[120];
+        byte[] sig = new byte[CryptoManager.SIGNATURE_SIZE];
+        signer.sign(msg, 0, msg.length, sig, 0);
+
+        boolean ok = true;
+        for (int i = 0; i < WARMUP; ++i) {
+            CryptoManager.signDetached(msg, keys.PrivateKey);
+            signer.sign(msg, 0, msg.length, sig, 0);
+            ok &= CryptoManager.verifyDetached(sig, msg, keys.PublicKey);
+            ok &= verifier.verify(sig, 0, msg, 0, msg.length);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < RUNS; ++i)
+            CryptoManager.signDetached(msg, keys.PrivateKey);
+        long staticSign = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < RUNS; ++i)
+            signer.sign(msg, 0, msg.length, sig, 0);
+        long preparedSign = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < RUNS; ++i)
+            ok &= CryptoManager.verifyDetached(sig, msg, keys.PublicKey);
+        long staticVerify = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < RUNS; ++i)
+            ok &= verifier.verify(sig, 0, msg, 0, msg.length);
+        long preparedVerify = System.nanoTime() - start;
+
+        assertTrue(ok);
+        assertTrue("Prepared sign took " + preparedSign + " ns, static " + staticSign, preparedSign <= staticSign);
+        // Verifying does the same curve work either way, the prepared verifier only has to keep up.
+        assertTrue("Prepared verify took " + preparedVerify + " ns, static " + staticVerify, preparedVerify <= staticVerify * 3 / 2);
+    }
+}
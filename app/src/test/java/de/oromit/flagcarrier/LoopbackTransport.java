@@ -0,0 +1,32 @@
+package de.oromit.flagcarrier;
+
+/**
+ * Feeds APDUs straight into an ApduHandler, so a reader can talk to the card side in-process.
+ */
+class LoopbackTransport implements ApduTransport {
+    private static final int SHORT_TRANSCEIVE_LENGTH = 261;
+    private static final int EXTENDED_TRANSCEIVE_LENGTH = 65279;
+
+    private final ApduHandler handler;
+    private final boolean extendedLength;
+
+    public LoopbackTransport(ApduHandler handler, boolean extendedLength) {
+        this.handler = handler;
+        this.extendedLength = extendedLength;
+    }
+
+    @Override
+    public byte[] transceive(byte[] apdu) {
+        return handler.process(apdu);
+    }
+
+    @Override
+    public int getMaxTransceiveLength() {
+        return extendedLength ? EXTENDED_TRANSCEIVE_LENGTH : SHORT_TRANSCEIVE_LENGTH;
+    }
+
+    @Override
+    public boolean isExtendedLengthApduSupported() {
+        return extendedLength;
+    }
+}
@@ -0,0 +1,91 @@
+package de.oromit.flagcarrier;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Every payload codec over a corpus of profiles: each one round-trips, PayloadEncoder always
+ * picks the smallest and the preset dictionary pays off over plain DEFLATE.
+ */
+public class PayloadCodecTest {
+    private static final int CODECS = PayloadFormat.CODEC_DICT + 1;
+
+    private final Deflater deflater = new Deflater(9, true);
+    private final PayloadInflater inflater = new PayloadInflater();
+    private final byte[] out = new byte[4096];
+
+    @Test
+    public void encoderPicksTheSmallestCodec() throws Exception {
+        List<Map<String, String>> corpus = Profiles.corpus(500, 4);
+        PayloadEncoder encoder = new PayloadEncoder();
+
+        long[] sizes = new long[CODECS];
+
+        for (Map<String, String> profile : corpus) {
+            byte[] payload = encoder.encode(profile, null, null);
+            byte[] data = rawData(payload);
+
+            int best = Integer.MAX_VALUE;
+            for (int codec = 0; codec < CODECS; ++codec) {
+                byte[] packed = pack(codec, data);
+                assertEquals(profile, TagView.parse(rawData(packed), data.length).asMap());
+
+                sizes[codec] += packed.length;
+                best = Math.min(best, packed.length);
+            }
+
+            assertEquals("Encoder didn't pick the smallest codec for " + profile, best, payload.length);
+        }
+        encoder.end();
+        deflater.end();
+        inflater.end();
+
+        assertTrue("dict " + sizes[PayloadFormat.CODEC_DICT] + " bytes, deflate " + sizes[PayloadFormat.CODEC_DEFLATE],
+                sizes[PayloadFormat.CODEC_DICT] < sizes[PayloadFormat.CODEC_DEFLATE]);
+    }
+
+    // The v2 data inside an unsigned payload, whichever codec it uses.
+    private byte[] rawData(byte[] payload) throws TagManager.TagManagerException {
+        switch (payload[0] & 0x0F) {
+            case PayloadFormat.CODEC_STORED:
+                return Arrays.copyOfRange(payload, 1, payload.length);
+            case PayloadFormat.CODEC_DEFLATE:
+                return inflater.inflate(payload, 1, true, null, 0);
+            default:
+                return inflater.inflate(payload, 2, true, PayloadDictionary.forVersion(payload[1] & 0xFF), 0);
+        }
+    }
+
+    private byte[] pack(int codec, byte[] data) {
+        if (codec == PayloadFormat.CODEC_STORED) {
+            byte[] res = new byte[1 + data.length];
+            res[0] = (byte)(PayloadFormat.PAYLOAD_MARKER | codec);
+            System.arraycopy(data, 0, res, 1, data.length);
+            return res;
+        }
+
+        deflater.reset();
+        if (codec == PayloadFormat.CODEC_DICT)
+            PayloadDictionary.CURRENT.applyTo(deflater);
+        deflater.setInput(data);
+        deflater.finish();
+        int n = 0;
+        while (!deflater.finished())
+            n += deflater.deflate(out, n, out.length - n);
+
+        int hdr = codec == PayloadFormat.CODEC_DICT ? 2 : 1;
+        byte[] res = new byte[hdr + n];
+        res[0] = (byte)(PayloadFormat.PAYLOAD_MARKER | codec);
+        if (codec == PayloadFormat.CODEC_DICT)
+            res[1] = (byte)PayloadDictionary.CURRENT.version;
+        System.arraycopy(out, 0, res, hdr, n);
+        return res;
+    }
+}
@@ -0,0 +1,110 @@
+package de.oromit.flagcarrier;
+
+import android.nfc.NdefMessage;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class PayloadEncoderTest {
+    private static final byte[] UID = { 0x04, 0x11, 0x22, 0x33, 0x44, 0x55, 0x66, (byte)0xAA };
+    private static final int WARMUP = 20000;
+    private static final int RUNS = 2000;
+
+    // Iterating the map may allocate an iterator when the JIT doesn't get rid of it.
+    private static final long SLACK = 64;
+
+    @Test
+    public void steadyStateAllocatesOnlyTheOutput() throws Exception {
+        Allocations.assumeSupported();
+
+        for (Map<String, String> data : Profiles.corpus(8, 1)) {
+            PayloadEncoder encoder = new PayloadEncoder();
+            int size = 0;
+            for (int i = 0; i < WARMUP; ++i)
+                size = encoder.encode(data, null, null).length;
+
+            long start = Allocations.current();
+            for (int i = 0; i < RUNS; ++i)
+                encoder.encode(data, null, null);
+            long perRun = (Allocations.current() - start) / RUNS;
+
+            encoder.end();
+            assertTrue(perRun + " bytes per encode for " + size + " bytes of output",
+                    perRun <= Allocations.arraySize(size) + SLACK);
+        }
+    }
+
+    // Ed25519 signing allocates on its own, the encoder may add nothing but the output to it.
+    @Test
+    public void signedSteadyStateAllocatesOnlyTheOutputAndSignature() throws Exception {
+        Allocations.assumeSupported();
+        CryptoManager.PreparedSigner signer = new CryptoManager.PreparedSigner(CryptoManager.genKeyPair().PrivateKey);
+
+        for (Map<String, String> data : Profiles.corpus(8, 1)) {
+            PayloadEncoder encoder = new PayloadEncoder();
+            byte[] payload = null;
+            for (int i = 0; i < WARMUP / 10; ++i)
+                payload = encoder.encode(data, signer, UID);
+
+            long start = Allocations.current();
+            for (int i = 0; i < RUNS; ++i)
+                encoder.encode(data, signer, UID);
+            long perRun = (Allocations.current() - start) / RUNS;
+            encoder.end();
+
+            byte[] sig = new byte[CryptoManager.SIGNATURE_SIZE];
+            start = Allocations.current();
+            for (int i = 0; i < RUNS; ++i)
+                signer.sign(payload, 0, payload.length, sig, 0);
+            long signing = (Allocations.current() - start) / RUNS;
+
+            assertTrue(perRun + " bytes per signed encode for " + payload.length + " bytes of output, signing takes " + signing,
+                    perRun <= Allocations.arraySize(payload.length) + signing + SLACK);
+        }
+    }
+
+    @Test
+    public void signedMessageVerifies() throws Exception {
+        CryptoManager.KeyPair keys = CryptoManager.genKeyPair();
+        Map<String, String> data = Profiles.sample();
+
+        TagManager writer = new TagManager();
+        writer.setPrivateKey(keys.PrivateKey);
+        writer.setExtraSignData(UID);
+        NdefMessage msg = writer.generateMessage(data);
+        assertArrayEquals(msg.toByteArray(), writer.generateMessage(data).toByteArray());
+        writer.close();
+
+        TagManager reader = new TagManager();
+        reader.setPublicKey(keys.PublicKey);
+        reader.setExtraSignData(UID);
+        Map<String, String> parsed = reader.parseMessage(msg);
+        reader.close();
+
+        assertEquals("true", parsed.get("sig_valid"));
+        for (Map.Entry<String, String> e : data.entrySet())
+            assertEquals(e.getValue(), parsed.get(e.getKey()));
+    }
+
+    @Test
+    public void encodesTheSameAfterEnd() throws Exception {
+        PayloadEncoder encoder = new PayloadEncoder();
+        Map<String, String> data = Profiles.sample();
+
+        byte[] before = encoder.encode(data, null, null);
+        encoder.end();
+        encoder.end();
+        byte[] after = encoder.encode(data, null, null);
+
+        assertArrayEquals(before, after);
+        assertArrayEquals(before, new PayloadEncoder().encode(data, null, null));
+    }
+}
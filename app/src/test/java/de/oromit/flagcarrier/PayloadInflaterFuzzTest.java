@@ -0,0 +1,204 @@
+package de.oromit.flagcarrier;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Mutated raw, zlib and dictionary streams through PayloadInflater and TagView. Everything
+ * has to end in data or a TagManagerException, within the size cap and without spinning.
+ */
+public class PayloadInflaterFuzzTest {
+    // The long run comes with the benchmarks.
+    private static final int MUTATIONS = Boolean.getBoolean("benchmarks") ? 50000 : 5000;
+    private static final int MAX_SIZE = 4096;
+    private static final long TIME_LIMIT_MILLIS = 30000;
+
+    private static class Stream {
+        final byte[] data;
+        final boolean nowrap;
+        final PayloadDictionary dict;
+
+        Stream(byte[] data, boolean nowrap, PayloadDictionary dict) {
+            this.data = data;
+            this.nowrap = nowrap;
+            this.dict = dict;
+        }
+    }
+
+    @Test
+    public void mutatedStreamsFailCleanly() {
+        List<Stream> seeds = seeds();
+        PayloadInflater inflater = new PayloadInflater(MAX_SIZE);
+        Random rnd = new Random(5);
+
+        long start = System.nanoTime();
+
+        for (int i = 0; i < MUTATIONS; ++i) {
+            Stream seed = seeds.get(rnd.nextInt(seeds.size()));
+            byte[] b = mutate(seed.data, rnd);
+
+            try {
+                byte[] data = inflater.inflate(b, 0, seed.nowrap, seed.dict, 8);
+                assertTrue("Output over the cap", data.length - 8 <= MAX_SIZE);
+                TagView.parse(data, data.length - 8).asMap().size();
+            } catch (TagManager.TagManagerException e) {
+                // Rejected cleanly.
+            } catch (RuntimeException e) {
+                throw new AssertionError("Mutation " + i + " of " + Arrays.toString(seed.data) + ": " + Arrays.toString(b), e);
+            }
+        }
+
+        long millis = (System.nanoTime() - start) / 1000000;
+        inflater.end();
+
+        assertTrue("Fuzzing took " + millis + " ms", millis < TIME_LIMIT_MILLIS);
+    }
+
+    @Test
+    public void bombsStopAtTheCap() throws Exception {
+        Deflater deflater = new Deflater(9, true);
+        byte[] zeros = new byte[1024 * 1024];
+        byte[] bomb = new byte[8192];
+        deflater.setInput(zeros);
+        deflater.finish();
+        int n = deflater.deflate(bomb);
+        deflater.end();
+
+        PayloadInflater inflater = new PayloadInflater(MAX_SIZE);
+        try {
+            inflater.inflate(Arrays.copyOf(bomb, n), 0, true, null, 0);
+            fail("Inflated past the cap");
+        } catch (TagManager.TagManagerException e) {
+            assertEquals("Tag data exceeds " + MAX_SIZE + " bytes", e.getMessage());
+        }
+
+        try {
+            inflater.inflate(Arrays.copyOf(bomb, n / 2), 0, true, null, 0);
+            fail("Inflated a truncated stream");
+        } catch (TagManager.TagManagerException e) {
+            assertTrue(e.getMessage().startsWith("Incomplete") || e.getMessage().startsWith("Tag data exceeds"));
+        }
+        inflater.end();
+    }
+
+    @Test
+    public void zlibWithPresetDictionaryIsRefused() {
+        byte[] data = "display_name".getBytes();
+        PayloadInflater inflater = new PayloadInflater(MAX_SIZE);
+        try {
+            inflater.inflate(deflate(data, false, PayloadDictionary.CURRENT), 0, false, null, 0);
+            fail("Inflated zlib data with an unknown dictionary");
+        } catch (TagManager.TagManagerException e) {
+            assertEquals("Unknown payload dictionary", e.getMessage());
+        }
+        inflater.end();
+    }
+
+    @Test
+    public void usableAfterEnd() throws Exception {
+        Stream s = seeds().get(0);
+        PayloadInflater inflater = new PayloadInflater();
+
+        byte[] before = inflater.inflate(s.data, 0, s.nowrap, s.dict, 0);
+        inflater.end();
+        assertTrue(Arrays.equals(before, inflater.inflate(s.data, 0, s.nowrap, s.dict, 0)));
+        inflater.end();
+    }
+
+    // Profiles deflated every way the parser reads them.
+    private static List<Stream> seeds() {
+        List<Stream> seeds = new ArrayList<>();
+        PayloadEncoder encoder = new PayloadEncoder();
+        PayloadInflater inflater = new PayloadInflater();
+
+        try {
+            for (Map<String, String> profile : Profiles.corpus(20, 6)) {
+                byte[] payload = encoder.encode(profile, null, null);
+                byte[] data;
+                switch (payload[0] & 0x0F) {
+                    case PayloadFormat.CODEC_STORED:
+                        data = Arrays.copyOfRange(payload, 1, payload.length);
+                        break;
+                    case PayloadFormat.CODEC_DEFLATE:
+                        data = inflater.inflate(payload, 1, true, null, 0);
+                        break;
+                    default:
+                        data = inflater.inflate(payload, 2, true, PayloadDictionary.CURRENT, 0);
+                        break;
+                }
+
+                seeds.add(new Stream(deflate(data, true, null), true, null));
+                seeds.add(new Stream(deflate(data, true, PayloadDictionary.CURRENT), true, PayloadDictionary.CURRENT));
+                seeds.add(new Stream(deflate(data, false, null), false, null));
+            }
+        } catch (TagManager.TagManagerException e) {
+            throw new AssertionError(e);
+        } finally {
+            encoder.end();
+            inflater.end();
+        }
+
+        return seeds;
+    }
+
+    private static byte[] deflate(byte[] data, boolean nowrap, PayloadDictionary dict) {
+        Deflater deflater = new Deflater(9, nowrap);
+        if (dict != null)
+            dict.applyTo(deflater);
+        deflater.setInput(data);
+        deflater.finish();
+
+        byte[] out = new byte[data.length + 64];
+        int n = deflater.deflate(out);
+        deflater.end();
+        return Arrays.copyOf(out, n);
+    }
+
+    private static byte[] mutate(byte[] seed, Random rnd) {
+        byte[] b = seed.clone();
+
+        switch (rnd.nextInt(6)) {
+            case 0:
+                b[rnd.nextInt(b.length)] ^= 1 << rnd.nextInt(8);
+                break;
+            case 1:
+                b[rnd.nextInt(b.length)] = (byte)rnd.nextInt(256);
+                break;
+            case 2:
+                b = Arrays.copyOf(b, rnd.nextInt(b.length));
+                break;
+            case 3: {
+                int pos = rnd.nextInt(b.length + 1);
+                byte[] res = new byte[b.length + 1];
+                System.arraycopy(b, 0, res, 0, pos);
+                res[pos] = (byte)rnd.nextInt(256);
+                System.arraycopy(b, pos, res, pos + 1, b.length - pos);
+                b = res;
+                break;
+            }
+            case 4: {
+                int n = 1 + rnd.nextInt(32);
+                b = Arrays.copyOf(b, b.length + n);
+                for (int i = b.length - n; i < b.length; ++i)
+                    b[i] = (byte)rnd.nextInt(256);
+                break;
+            }
+            default:
+                for (int i = 0; i < 1 + rnd.nextInt(4); ++i)
+                    b[rnd.nextInt(b.length)] = (byte)rnd.nextInt(256);
+                break;
+        }
+
+        return b;
+    }
+}
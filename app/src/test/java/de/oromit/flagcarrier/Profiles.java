@@ -0,0 +1,54 @@
+package de.oromit.flagcarrier;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Profiles shaped like the ones written at events: always a display name and country, most
+ * with some of the account names and now and then an extra key.
+ */
+class Profiles {
+    private static final String[] NAMES = {
+            "Alex", "Sam", "Kim", "Jo", "Robin", "Charlie", "Toni", "Maxime", "Luca", "Noa",
+            "Speedy", "TheRunner", "glitchless", "anyPercentPro", "Zoë", "Jörg", "Łukasz", "Ryō"
+    };
+    private static final String[] COUNTRIES = { "DE", "US", "GB", "SE", "FR", "JP", "PL", "NL", "CA", "AU" };
+
+    static Map<String, String> sample() {
+        Map<String, String> data = new LinkedHashMap<>();
+        data.put("display_name", "TheRunner");
+        data.put("country_code", "DE");
+        data.put("speedruncom_name", "therunner");
+        data.put("twitch_name", "therunner_tv");
+        data.put("twitter_handle", "@therunner");
+        return data;
+    }
+
+    static List<Map<String, String>> corpus(int count, long seed) {
+        Random rnd = new Random(seed);
+        List<Map<String, String>> profiles = new ArrayList<>(count);
+
+        for (int i = 0; i < count; ++i) {
+            String name = NAMES[rnd.nextInt(NAMES.length)] + (rnd.nextBoolean() ? rnd.nextInt(1000) : "");
+            String handle = name.toLowerCase();
+
+            Map<String, String> data = new LinkedHashMap<>();
+            data.put("display_name", name);
+            data.put("country_code", COUNTRIES[rnd.nextInt(COUNTRIES.length)]);
+            if (rnd.nextInt(4) != 0)
+                data.put("speedruncom_name", handle);
+            if (rnd.nextInt(3) != 0)
+                data.put("twitch_name", handle + (rnd.nextBoolean() ? "_tv" : ""));
+            if (rnd.nextBoolean())
+                data.put("twitter_handle", "@" + handle);
+            if (rnd.nextInt(5) == 0)
+                data.put("pronouns", rnd.nextBoolean() ? "they/them" : "she/her");
+            profiles.add(data);
+        }
+
+        return profiles;
+    }
+}
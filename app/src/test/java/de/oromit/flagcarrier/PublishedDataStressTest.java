@@ -0,0 +1,220 @@
+package de.oromit.flagcarrier;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Producers queue one-time data and republish the regular data while readers run complete
+ * sessions through their own ApduHandler. No publish may get lost, every queued message must
+ * be handed out exactly once and the version may only ever go up.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PublishedDataStressTest {
+    private static final int PUBLISHERS = 8;
+    private static final int PUBLISHES_PER_THREAD = 500;
+    private static final int PRODUCERS = 4;
+    private static final int MESSAGES_PER_PRODUCER = 250;
+    private static final int READERS = 4;
+    private static final long TIMEOUT_MILLIS = 60000;
+
+    private static final byte[] UPDATE = new byte[] { 0, ApduHandler.UPDATEBINARY_INS, 0, 0, 1, 0x42 };
+
+    private final AtomicReference<PublishedData> published = new AtomicReference<>(PublishedData.EMPTY);
+    private final Map<ByteBuffer, Integer> ids = new ConcurrentHashMap<>();
+    private final AtomicReferenceArray<String> handedOut = new AtomicReferenceArray<>(PRODUCERS * MESSAGES_PER_PRODUCER);
+    private final AtomicInteger handOffs = new AtomicInteger();
+    private final AtomicBoolean producing = new AtomicBoolean(true);
+    private final List<Throwable> errors = new ArrayList<>();
+
+    @Test
+    public void everyPublishIsCounted() throws Exception {
+        List<Thread> threads = new ArrayList<>();
+        CountDownLatch go = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(PUBLISHERS);
+        Map<String, String> data = Profiles.sample();
+        long before = HCEService.getPublishedVersion();
+
+        for (int p = 0; p < PUBLISHERS; ++p) {
+            threads.add(thread(() -> {
+                go.await();
+                for (int i = 0; i < PUBLISHES_PER_THREAD; ++i) {
+                    if (i % 2 == 0)
+                        HCEService.publishData(data);
+                    else
+                        HCEService.publishOneTimeData(data);
+                }
+                done.countDown();
+            }));
+        }
+
+        threads.add(thread(() -> {
+            long last = before;
+            go.await();
+            while (producing.get()) {
+                long version = HCEService.getPublishedVersion();
+                assertTrue("Version went back from " + last + " to " + version, version >= last);
+                last = version;
+            }
+        }));
+
+        go.countDown();
+        done.await();
+        producing.set(false);
+
+        for (Thread t : threads) {
+            t.join(TIMEOUT_MILLIS);
+            assertTrue("Stuck: " + t.getName(), !t.isAlive());
+        }
+
+        synchronized (errors) {
+            if (!errors.isEmpty())
+                throw new AssertionError(errors.get(0));
+        }
+
+        assertEquals(before + PUBLISHERS * PUBLISHES_PER_THREAD, HCEService.getPublishedVersion());
+    }
+
+    @Test
+    public void everyMessageIsHandedOutOnce() throws Exception {
+        List<Thread> threads = new ArrayList<>();
+        CountDownLatch go = new CountDownLatch(1);
+        CountDownLatch produced = new CountDownLatch(PRODUCERS);
+
+        for (int p = 0; p < PRODUCERS; ++p) {
+            int first = p * MESSAGES_PER_PRODUCER;
+            threads.add(thread(() -> {
+                go.await();
+                for (int i = first; i < first + MESSAGES_PER_PRODUCER; ++i)
+                    queue(i);
+                produced.countDown();
+            }));
+        }
+
+        for (int r = 0; r < READERS; ++r) {
+            String name = "reader " + r;
+            threads.add(thread(() -> {
+                ApduHandler handler = new ApduHandler(published, null, null, false);
+                go.await();
+                while (producing.get() || published.get().getQueueDepth() > 0)
+                    readSession(handler, name);
+            }));
+        }
+
+        // Republishing the regular data in between must never touch the queue.
+        threads.add(thread(() -> {
+            PreparedMessage data = PreparedMessage.encode(Profiles.sample());
+            go.await();
+            while (producing.get()) {
+                PublishedData cur;
+                do {
+                    cur = published.get();
+                } while (!published.compareAndSet(cur, cur.withData(data)));
+            }
+        }));
+
+        threads.add(thread(() -> {
+            long last = 0;
+            go.await();
+            while (producing.get() || published.get().getQueueDepth() > 0) {
+                long version = published.get().version;
+                assertTrue("Version went back from " + last + " to " + version, version >= last);
+                last = version;
+            }
+        }));
+
+        go.countDown();
+        produced.await();
+        producing.set(false);
+
+        for (Thread t : threads) {
+            t.join(TIMEOUT_MILLIS);
+            assertTrue("Stuck: " + t.getName(), !t.isAlive());
+        }
+
+        synchronized (errors) {
+            if (!errors.isEmpty())
+                throw new AssertionError(errors.get(0));
+        }
+
+        int count = PRODUCERS * MESSAGES_PER_PRODUCER;
+        for (int i = 0; i < count; ++i)
+            assertTrue("Message " + i + " was never handed out", handedOut.get(i) != null);
+        assertEquals(count, handOffs.get());
+        assertNull(published.get().nextOneTimeData());
+    }
+
+    private void queue(int id) throws Exception {
+        Map<String, String> data = Profiles.sample();
+        data.put("display_name", "Runner " + id);
+        PreparedMessage msg = PreparedMessage.encode(data);
+        ids.put(ByteBuffer.wrap(msg.sign(null, null, 0, 0).clone()), id);
+
+        PublishedData cur;
+        do {
+            cur = published.get();
+        } while (!published.compareAndSet(cur, cur.withQueuedOneTimeData(msg)));
+    }
+
+    // Reads whatever is served completely, like a phone that stays on the reader.
+    private void readSession(ApduHandler handler, String name) throws Exception {
+        byte[] res = handler.process(UPDATE);
+        if (res.length != 2 || res[0] != ApduHandler.STATUS_SUCCESS[0]) {
+            handler.deactivate();
+            Thread.yield();
+            return;
+        }
+
+        ByteBuffer read = ByteBuffer.allocate(4096);
+        while (true) {
+            int off = read.position();
+            res = handler.process(new byte[] { 0, ApduHandler.READBINARY_INS, (byte)(off >> 8), (byte)off, 0 });
+            if (res.length == 2)
+                break;
+            read.put(res, 0, res.length - 2);
+        }
+        read.flip();
+
+        Integer id = ids.get(read);
+        if (handler.deactivate()) {
+            assertTrue("Handed out something that wasn't queued", id != null);
+            String prev = handedOut.getAndSet(id, name);
+            assertNull("Message " + id + " handed out to " + prev + " and " + name, prev);
+            handOffs.incrementAndGet();
+        }
+    }
+
+    private interface Body {
+        void run() throws Exception;
+    }
+
+    private Thread thread(Body body) {
+        Thread t = new Thread(() -> {
+            try {
+                body.run();
+            } catch (Throwable e) {
+                synchronized (errors) {
+                    errors.add(e);
+                }
+                producing.set(false);
+            }
+        });
+        t.start();
+        return t;
+    }
+}
@@ -0,0 +1,146 @@
+package de.oromit.flagcarrier;
+
+import android.nfc.FormatException;
+import android.nfc.NdefMessage;
+import android.nfc.TagLostException;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Tag in memory for exercising the write path without hardware. Models the capacity, a
+ * read-only tag, the time every written page takes and the tag being pulled away partway
+ * through a write, which leaves the pages written so far behind. A blank tag behaves like
+ * NdefFormatable: no size, no read back and locking only while writing.
+ */
+class SimulatedTag implements TagTransport {
+    public static final int PAGE_SIZE = 4;
+
+    private final byte[] memory;
+    private boolean readOnly = false;
+    private long pageWriteNanos = 0;
+    private int loseAfterPages = -1;
+    private boolean blank = false;
+
+    private boolean connected = false;
+    private int length = 0;
+    private int pagesWritten = 0;
+
+    public SimulatedTag(int capacity) {
+        memory = new byte[capacity];
+    }
+
+    public void setReadOnly(boolean readOnly) {
+        this.readOnly = readOnly;
+    }
+
+    // NTAG21x take around 4 ms per page.
+    public void setPageWriteNanos(long nanos) {
+        pageWriteNanos = nanos;
+    }
+
+    // The connection drops once that many pages have been written, -1 never.
+    public void setLoseAfterPages(int pages) {
+        loseAfterPages = pages;
+    }
+
+    public void setBlank(boolean blank) {
+        this.blank = blank;
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public int getPagesWritten() {
+        return pagesWritten;
+    }
+
+    // What a reader would find on the tag, possibly a torn write.
+    public byte[] getContents() {
+        return Arrays.copyOf(memory, length);
+    }
+
+    @Override
+    public void connect() throws IOException {
+        if (connected)
+            throw new IllegalStateException("Already connected");
+        if (loseAfterPages == 0)
+            throw new TagLostException();
+        connected = true;
+    }
+
+    @Override
+    public boolean isWritable() {
+        return !readOnly;
+    }
+
+    @Override
+    public int getMaxSize() {
+        return blank ? -1 : memory.length;
+    }
+
+    @Override
+    public boolean writeNdefMessage(NdefMessage msg, byte[] data, boolean makeReadOnly) throws IOException, FormatException {
+        if (!connected)
+            throw new IllegalStateException("Not connected");
+        if (readOnly)
+            throw new IOException("Tag is read-only");
+
+        if (data.length > memory.length)
+            throw new IOException("Message exceeds tag capacity");
+
+        length = 0;
+        for (int off = 0; off < data.length; off += PAGE_SIZE) {
+            if (loseAfterPages >= 0 && pagesWritten >= loseAfterPages) {
+                connected = false;
+                throw new TagLostException("Tag was lost.");
+            }
+
+            if (pageWriteNanos > 0)
+                sleep(pageWriteNanos);
+
+            int n = Math.min(PAGE_SIZE, data.length - off);
+            System.arraycopy(data, off, memory, off, n);
+            length = off + n;
+            ++pagesWritten;
+        }
+
+        if (blank && makeReadOnly) {
+            readOnly = true;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public byte[] readNdefMessage() throws IOException {
+        if (!connected)
+            throw new TagLostException("Tag was lost.");
+        return blank ? null : getContents();
+    }
+
+    @Override
+    public boolean makeReadOnly() throws IOException {
+        if (!connected)
+            throw new TagLostException("Tag was lost.");
+        if (blank)
+            return false;
+        readOnly = true;
+        return true;
+    }
+
+    @Override
+    public void close() {
+        connected = false;
+    }
+
+    private static void sleep(long nanos) throws IOException {
+        try {
+            Thread.sleep(nanos / 1000000, (int)(nanos % 1000000));
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        }
+    }
+}
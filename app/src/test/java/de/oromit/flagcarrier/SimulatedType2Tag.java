@@ -0,0 +1,257 @@
+package de.oromit.flagcarrier;
+
+import android.nfc.NdefMessage;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Page image of a Type 2 tag in memory that answers READ, FAST_READ and WRITE like the
+ * real chip, for exercising the raw Type 2 read and write paths without hardware.
+ * A NAK halts the tag until reconnect, like on the real thing. Lock bytes and the CC are
+ * one-time programmable and writes to pages their lock bits cover are NAKed. The CC access
+ * bits alone don't stop writes, like on the real chips.
+ */
+class SimulatedType2Tag implements Type2Reader.Transport {
+    private static final int MAX_TRANSCEIVE_LENGTH = 253;
+    private static final int STATIC_LOCK_PAGE = 2;
+    private static final int FIRST_DYNAMIC_PAGE = 16;
+
+    /**
+     * Where the dynamic lock bits of a chip are, chosen by the data area size in the CC.
+     * NTAG215 and NTAG216 have more user memory than their CC announces.
+     */
+    static class Chip {
+        public final String name;
+        public final int dataSize;
+        public final int memorySize;
+        // 0 if the static lock bits cover all of it.
+        public final int lockPage;
+        public final int pagesPerLockBit;
+        // Configuration pages behind the lock page.
+        public final int configPages;
+
+        Chip(String name, int dataSize, int memorySize, int lockPage, int pagesPerLockBit, int configPages) {
+            this.name = name;
+            this.dataSize = dataSize;
+            this.memorySize = memorySize;
+            this.lockPage = lockPage;
+            this.pagesPerLockBit = pagesPerLockBit;
+            this.configPages = configPages;
+        }
+    }
+
+    static final Chip[] CHIPS = {
+            new Chip("Ultralight", 48, 48, 0, 0, 0),
+            new Chip("NTAG213", 144, 144, 0x28, 2, 4),
+            new Chip("NTAG215", 496, 504, 0x82, 16, 4),
+            new Chip("NTAG216", 872, 888, 0xE2, 16, 4),
+    };
+
+    private final Chip chip;
+    private final byte[] pages;
+    private final int dataEnd;
+    private final int memoryEnd;
+    private boolean fastReadSupported = true;
+    private boolean nakAsResponse = false;
+    private long commandNanos = 0;
+
+    private boolean halted = false;
+    private int commands = 0;
+    private int pagesWritten = 0;
+
+    /**
+     * Empty formatted tag with dataSize bytes of user memory as the CC states it, a multiple
+     * of 8. Sizes not in CHIPS get the default layout of the Type 2 spec, the dynamic lock
+     * bits right behind the data area and 8 bytes for every bit.
+     */
+    public SimulatedType2Tag(int dataSize) {
+        chip = chipFor(dataSize);
+        dataEnd = Type2Reader.DATA_PAGE + dataSize / Type2Reader.PAGE_SIZE;
+        memoryEnd = Type2Reader.DATA_PAGE + chip.memorySize / Type2Reader.PAGE_SIZE;
+        pages = new byte[(memoryEnd + (chip.lockPage != 0 ? 1 + chip.configPages : 0)) * Type2Reader.PAGE_SIZE];
+
+        int cc = Type2Reader.CC_PAGE * Type2Reader.PAGE_SIZE;
+        pages[cc] = (byte)0xE1;
+        pages[cc + 1] = 0x10;
+        pages[cc + 2] = (byte)(dataSize / 8);
+        pages[cc + 3] = 0x00;
+
+        int data = Type2Reader.DATA_PAGE * Type2Reader.PAGE_SIZE;
+        pages[data] = Type2Reader.TLV_NDEF;
+        pages[data + 1] = 0;
+        pages[data + 2] = (byte)Type2Reader.TLV_TERMINATOR;
+    }
+
+    private static Chip chipFor(int dataSize) {
+        for (Chip c : CHIPS) {
+            if (c.dataSize == dataSize)
+                return c;
+        }
+        int lockPage = dataSize > 48 ? Type2Reader.DATA_PAGE + dataSize / Type2Reader.PAGE_SIZE : 0;
+        return new Chip("Type 2", dataSize, dataSize, lockPage, lockPage != 0 ? 2 : 0, 0);
+    }
+
+    // Original Ultralight and Ultralight C NAK FAST_READ.
+    public void setFastReadSupported(boolean supported) {
+        fastReadSupported = supported;
+    }
+
+    // Hands the 4-bit NAK back as the response, like some NFC stacks, instead of failing.
+    public void setNakAsResponse(boolean nakAsResponse) {
+        this.nakAsResponse = nakAsResponse;
+    }
+
+    // Time every command takes on the air, a few milliseconds on real tags.
+    public void setCommandNanos(long nanos) {
+        commandNanos = nanos;
+    }
+
+    // Lays out the NDEF TLV like a formatted tag holding msg.
+    public void setNdefMessage(NdefMessage msg) {
+        byte[] b = msg.toByteArray();
+        int pos = Type2Reader.DATA_PAGE * Type2Reader.PAGE_SIZE;
+        int end = dataEnd * Type2Reader.PAGE_SIZE;
+        if (pos + (b.length < 0xFF ? 2 : 4) + b.length > end)
+            throw new IllegalArgumentException("Message exceeds tag capacity");
+
+        pages[pos++] = Type2Reader.TLV_NDEF;
+        if (b.length < 0xFF) {
+            pages[pos++] = (byte)b.length;
+        } else {
+            pages[pos++] = (byte)0xFF;
+            pages[pos++] = (byte)(b.length >> 8);
+            pages[pos++] = (byte)b.length;
+        }
+        System.arraycopy(b, 0, pages, pos, b.length);
+        pos += b.length;
+        if (pos < end)
+            pages[pos] = (byte)Type2Reader.TLV_TERMINATOR;
+    }
+
+    // Raw bytes from the start of the data area on, for TLV layouts setNdefMessage doesn't make.
+    public void setData(byte[] b) {
+        int pos = Type2Reader.DATA_PAGE * Type2Reader.PAGE_SIZE;
+        if (pos + b.length > dataEnd * Type2Reader.PAGE_SIZE)
+            throw new IllegalArgumentException("Data exceeds tag capacity");
+        System.arraycopy(b, 0, pages, pos, b.length);
+    }
+
+    public Chip getChip() {
+        return chip;
+    }
+
+    // Whether the static or dynamic lock bits set so far cover page.
+    public boolean isPageLocked(int page) {
+        int lock = STATIC_LOCK_PAGE * Type2Reader.PAGE_SIZE;
+        if (page >= Type2Reader.CC_PAGE && page < 8)
+            return (pages[lock + 2] & (1 << page)) != 0;
+        if (page >= 8 && page < FIRST_DYNAMIC_PAGE)
+            return (pages[lock + 3] & (1 << (page - 8))) != 0;
+        if (page < FIRST_DYNAMIC_PAGE || page >= memoryEnd || chip.lockPage == 0)
+            return false;
+
+        int bit = (page - FIRST_DYNAMIC_PAGE) / chip.pagesPerLockBit;
+        return bit < 24 && (pages[chip.lockPage * Type2Reader.PAGE_SIZE + bit / 8] & (1 << (bit % 8))) != 0;
+    }
+
+    public byte[] getImage() {
+        return pages.clone();
+    }
+
+    public int getCommands() {
+        return commands;
+    }
+
+    public int getPagesWritten() {
+        return pagesWritten;
+    }
+
+    @Override
+    public byte[] transceive(byte[] cmd) throws IOException {
+        ++commands;
+        if (commandNanos > 0)
+            sleep(commandNanos);
+
+        if (halted)
+            throw new IOException("Transceive failed");
+
+        int pageCount = pages.length / Type2Reader.PAGE_SIZE;
+
+        switch (cmd[0]) {
+            case Type2Reader.CMD_READ: {
+                // Reads roll over to page 0 at the end of memory.
+                byte[] res = new byte[4 * Type2Reader.PAGE_SIZE];
+                int page = cmd[1] & 0xFF;
+                if (page >= pageCount)
+                    return nak();
+                for (int i = 0; i < res.length; ++i)
+                    res[i] = pages[(page * Type2Reader.PAGE_SIZE + i) % pages.length];
+                return res;
+            }
+            case Type2Reader.CMD_FAST_READ: {
+                int start = cmd[1] & 0xFF;
+                int end = cmd[2] & 0xFF;
+                if (!fastReadSupported || start > end || end >= pageCount
+                        || (end - start + 1) * Type2Reader.PAGE_SIZE > MAX_TRANSCEIVE_LENGTH)
+                    return nak();
+                return Arrays.copyOfRange(pages, start * Type2Reader.PAGE_SIZE, (end + 1) * Type2Reader.PAGE_SIZE);
+            }
+            case Type2Writer.CMD_WRITE: {
+                int page = cmd[1] & 0xFF;
+                if (cmd.length != 2 + Type2Reader.PAGE_SIZE || page < STATIC_LOCK_PAGE || page >= pageCount
+                        || isPageLocked(page))
+                    return nak();
+
+                int off = page * Type2Reader.PAGE_SIZE;
+                if (page == STATIC_LOCK_PAGE || page == Type2Reader.CC_PAGE || page == chip.lockPage) {
+                    // Lock bits and CC can only be set. The first two bytes of page 2 belong to the UID.
+                    for (int i = page == STATIC_LOCK_PAGE ? 2 : 0; i < Type2Reader.PAGE_SIZE; ++i)
+                        pages[off + i] |= cmd[2 + i];
+                } else {
+                    System.arraycopy(cmd, 2, pages, off, Type2Reader.PAGE_SIZE);
+                }
+
+                ++pagesWritten;
+                return new byte[] { Type2Writer.ACK };
+            }
+            default:
+                return nak();
+        }
+    }
+
+    @Override
+    public void connect() {
+        halted = false;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public int getMaxTransceiveLength() {
+        return MAX_TRANSCEIVE_LENGTH;
+    }
+
+    @Override
+    public void reconnect() {
+        halted = false;
+    }
+
+    private byte[] nak() throws IOException {
+        halted = true;
+        if (nakAsResponse)
+            return new byte[] { 0x00 };
+        throw new IOException("Transceive failed");
+    }
+
+    private static void sleep(long nanos) throws IOException {
+        try {
+            Thread.sleep(nanos / 1000000, (int)(nanos % 1000000));
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package de.oromit.flagcarrier;
+
+import android.nfc.NdefMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * TagManager.writeToTag against a SimulatedTag: the verified write and the ways it fails. The
+ * benchmark checks that a write costs little next to the page write time of a real NTAG.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class TagWriteTest {
+    private static final byte[] UID = { 0x04, 0x11, 0x22, 0x33, 0x44, 0x55, 0x66, (byte)0xAA };
+    private static final int NTAG215_SIZE = 496;
+    private static final long NTAG_PAGE_NANOS = 4000000;
+
+    private final TagManager tagManager = new TagManager();
+    private CryptoManager.KeyPair keys;
+    private NdefMessage msg;
+
+    @Before
+    public void generate() throws Exception {
+        keys = CryptoManager.genKeyPair();
+        tagManager.setPrivateKey(keys.PrivateKey);
+        tagManager.setExtraSignData(UID);
+        msg = tagManager.generateMessage(Profiles.sample());
+    }
+
+    @After
+    public void close() {
+        tagManager.close();
+    }
+
+    @Test
+    public void writeIsVerified() throws Exception {
+        SimulatedTag tag = new SimulatedTag(NTAG215_SIZE);
+        tagManager.writeToTag(tag, msg);
+
+        assertTrue(tagManager.isLastWriteVerified());
+        assertFalse(tag.isConnected());
+        assertArrayEquals(msg.toByteArray(), tag.getContents());
+        assertEquals((msg.toByteArray().length + SimulatedTag.PAGE_SIZE - 1) / SimulatedTag.PAGE_SIZE, tag.getPagesWritten());
+
+        TagManager reader = new TagManager();
+        reader.setPublicKey(keys.PublicKey);
+        reader.setExtraSignData(UID);
+        Map<String, String> data = reader.parseMessage(new NdefMessage(tag.getContents()));
+        reader.close();
+
+        assertEquals("true", data.get("sig_valid"));
+        assertEquals("TheRunner", data.get("display_name"));
+    }
+
+    @Test
+    public void tooSmall() {
+        SimulatedTag tag = new SimulatedTag(msg.toByteArray().length - 1);
+        expectFailure(tag, "Tag is too small");
+        assertEquals(0, tag.getPagesWritten());
+        assertFalse(tag.isConnected());
+    }
+
+    @Test
+    public void readOnly() {
+        SimulatedTag tag = new SimulatedTag(NTAG215_SIZE);
+        tag.setReadOnly(true);
+        expectFailure(tag, "Tag is not writable");
+        assertEquals(0, tag.getPagesWritten());
+    }
+
+    @Test
+    public void tagLostMidway() {
+        SimulatedTag tag = new SimulatedTag(NTAG215_SIZE);
+        tag.setLoseAfterPages(5);
+        expectFailure(tag, "Lost tag connection");
+
+        assertFalse(tagManager.isLastWriteVerified());
+        assertEquals(5, tag.getPagesWritten());
+        assertArrayEquals(Arrays.copyOf(msg.toByteArray(), 5 * SimulatedTag.PAGE_SIZE), tag.getContents());
+    }
+
+    @Test
+    public void tagLostBeforeConnect() {
+        SimulatedTag tag = new SimulatedTag(NTAG215_SIZE);
+        tag.setLoseAfterPages(0);
+        expectFailure(tag, "Lost tag connection");
+        assertEquals(0, tag.getContents().length);
+    }
+
+    @Test
+    public void makeReadOnly() throws Exception {
+        SimulatedTag tag = new SimulatedTag(NTAG215_SIZE);
+        tagManager.writeToTag(new TagSession(tag), msg, true);
+
+        assertTrue(tagManager.isLastWriteVerified());
+        assertFalse(tag.isWritable());
+        expectFailure(tag, "Tag is not writable");
+    }
+
+    @Test
+    public void blankTagIsLockedWhileWriting() throws Exception {
+        SimulatedTag tag = new SimulatedTag(NTAG215_SIZE);
+        tag.setBlank(true);
+        tagManager.writeToTag(new TagSession(tag), msg, true);
+
+        assertFalse(tagManager.isLastWriteVerified());
+        assertFalse(tag.isWritable());
+        assertArrayEquals(msg.toByteArray(), tag.getContents());
+    }
+
+    @Test
+    public void writeThroughput() throws Exception {
+        Benchmarks.assumeEnabled();
+        int writes = 20000;
+        int pages = 0;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < writes; ++i) {
+            SimulatedTag tag = new SimulatedTag(NTAG215_SIZE);
+            tagManager.writeToTag(tag, msg);
+            assertTrue(tagManager.isLastWriteVerified());
+            pages = tag.getPagesWritten();
+        }
+        long nanos = System.nanoTime() - start;
+
+        // Encoding, verifying and the session around it against the time the tag itself takes.
+        long perWrite = nanos / writes;
+        assertTrue(perWrite + " ns per write of " + pages + " pages", perWrite * 10 < pages * NTAG_PAGE_NANOS);
+    }
+
+    private void expectFailure(SimulatedTag tag, String message) {
+        try {
+            tagManager.writeToTag(tag, msg);
+            fail("Write went through");
+        } catch(TagManager.TagManagerException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith(message));
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package de.oromit.flagcarrier;
+
+import android.nfc.NdefMessage;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Type2Reader against page images of a SimulatedType2Tag: CC and TLV parsing, how many
+ * commands a read takes with and without FAST_READ. The benchmark compares the tap-to-result
+ * time of both.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class Type2ReaderTest {
+    private static final int NTAG213_SIZE = 144;
+    private static final int NTAG215_SIZE = 496;
+    private static final int NTAG216_SIZE = 872;
+    private static final long COMMAND_NANOS = 2000000;
+    private static final int TAPS = 10;
+
+    private NdefMessage msg;
+
+    @Before
+    public void generate() throws Exception {
+        TagManager tagManager = new TagManager();
+        tagManager.setPrivateKey(CryptoManager.genKeyPair().PrivateKey);
+        msg = tagManager.generateMessage(Profiles.sample());
+        tagManager.close();
+    }
+
+    @Test
+    public void capabilityContainer() throws Exception {
+        assertEquals(NTAG213_SIZE, Type2Reader.parseCapabilityContainer(new byte[] { (byte)0xE1, 0x10, 0x12, 0x00 }, 0));
+        assertEquals(NTAG216_SIZE, Type2Reader.parseCapabilityContainer(new byte[] { 0, (byte)0xE1, 0x11, 0x6D, 0x0F }, 1));
+
+        expectFailure(new byte[] { 0x00, 0x10, 0x12, 0x00 }, "Tag is not Ndef formatted");
+        expectFailure(new byte[] { (byte)0xE1, 0x20, 0x12, 0x00 }, "Unsupported Ndef mapping version");
+        expectFailure(new byte[] { (byte)0xE1, 0x10, 0x12, (byte)0x80 }, "Tag is not readable");
+    }
+
+    @Test
+    public void tlvs() throws Exception {
+        // NULL TLVs, a lock control TLV and a short NDEF TLV.
+        byte[] data = { 0, 0, 0x01, 0x03, (byte)0xA0, 0x10, 0x44, 0x03, 0x05, 1, 2, 3, 4, 5, (byte)0xFE };
+        assertArrayEquals(new int[] { 9, 5, 7 }, Type2Reader.findNdefTlv(data, data.length));
+        assertArrayEquals(new int[] { 9, 5, 7 }, Type2Reader.findNdefTlv(data, 9));
+        assertNull(Type2Reader.findNdefTlv(data, 8));
+        assertNull(Type2Reader.findNdefTlv(data, 4));
+
+        // Three byte length.
+        byte[] big = { 0x03, (byte)0xFF, 0x01, 0x2C };
+        assertArrayEquals(new int[] { 4, 300, 0 }, Type2Reader.findNdefTlv(big, big.length));
+        assertNull(Type2Reader.findNdefTlv(big, 3));
+
+        try {
+            Type2Reader.findNdefTlv(new byte[] { 0, 0, (byte)0xFE, 0x03, 0 }, 5);
+            fail("Found a message behind the terminator");
+        } catch(TagManager.TagManagerException e) {
+            assertEquals("No Ndef message on tag", e.getMessage());
+        }
+    }
+
+    @Test
+    public void readWithFastRead() throws Exception {
+        SimulatedType2Tag tag = new SimulatedType2Tag(NTAG215_SIZE);
+        tag.setNdefMessage(msg);
+
+        Type2Reader reader = new Type2Reader();
+        assertArrayEquals(msg.toByteArray(), reader.readBytes(tag));
+
+        // The first READ brings the CC and 12 data bytes, one FAST_READ the rest of the TLV.
+        assertEquals(2, reader.getLastCommands());
+        assertEquals(2, tag.getCommands());
+    }
+
+    @Test
+    public void readWithoutFastRead() throws Exception {
+        SimulatedType2Tag tag = new SimulatedType2Tag(NTAG215_SIZE);
+        tag.setNdefMessage(msg);
+
+        Type2Reader reader = new Type2Reader();
+        reader.setFastRead(false);
+        assertArrayEquals(msg.toByteArray(), reader.readBytes(tag));
+        assertEquals(1 + readCommands(2 + msg.toByteArray().length), reader.getLastCommands());
+    }
+
+    @Test
+    public void fastReadFallsBackToRead() throws Exception {
+        SimulatedType2Tag tag = new SimulatedType2Tag(NTAG213_SIZE);
+        tag.setFastReadSupported(false);
+        NdefMessage small = TagManager.buildMessage(new byte[] { 1, 2, 3 });
+        tag.setNdefMessage(small);
+
+        Type2Reader reader = new Type2Reader();
+        assertArrayEquals(small.toByteArray(), reader.readBytes(tag));
+
+        // The NAKed FAST_READ isn't answered, so only the tag counts it.
+        int reads = 1 + readCommands(2 + small.toByteArray().length);
+        assertEquals(reads, reader.getLastCommands());
+        assertEquals(reads + 1, tag.getCommands());
+    }
+
+    @Test
+    public void threeByteLength() throws Exception {
+        Map<String, String> data = Profiles.sample();
+        // Random letters, so the codec can't squeeze it below 255 bytes.
+        Random rnd = new Random(21);
+        char[] notes = new char[400];
+        for (int i = 0; i < notes.length; ++i)
+            notes[i] = (char)('a' + rnd.nextInt(26));
+        data.put("notes", new String(notes));
+        PayloadEncoder encoder = new PayloadEncoder();
+        NdefMessage large = TagManager.buildMessage(encoder.encode(data, null, null));
+        encoder.end();
+        assertTrue(large.toByteArray().length >= 0xFF);
+
+        SimulatedType2Tag tag = new SimulatedType2Tag(NTAG216_SIZE);
+        tag.setNdefMessage(large);
+        assertEquals((byte)0xFF, tag.getImage()[Type2Reader.DATA_PAGE * Type2Reader.PAGE_SIZE + 1]);
+
+        Type2Reader reader = new Type2Reader();
+        assertArrayEquals(large.toByteArray(), reader.readBytes(tag));
+    }
+
+    @Test
+    public void tlvsBeforeNdef() throws Exception {
+        byte[] b = msg.toByteArray();
+        byte[] data = new byte[7 + 2 + b.length + 1];
+        data[2] = 0x01;
+        data[3] = 0x03;
+        data[4] = (byte)0xA0;
+        data[5] = 0x10;
+        data[6] = 0x44;
+        data[7] = Type2Reader.TLV_NDEF;
+        data[8] = (byte)b.length;
+        System.arraycopy(b, 0, data, 9, b.length);
+        data[data.length - 1] = (byte)Type2Reader.TLV_TERMINATOR;
+
+        SimulatedType2Tag tag = new SimulatedType2Tag(NTAG215_SIZE);
+        tag.setData(data);
+
+        Type2Reader reader = new Type2Reader();
+        assertArrayEquals(b, reader.readBytes(tag));
+        assertEquals(2, reader.getLastCommands());
+    }
+
+    @Test
+    public void emptyAndUnformatted() throws Exception {
+        expectReadFailure(new SimulatedType2Tag(NTAG213_SIZE), "Tag is empty");
+
+        SimulatedType2Tag tag = new SimulatedType2Tag(NTAG213_SIZE);
+        tag.setData(new byte[] { (byte)Type2Reader.TLV_TERMINATOR });
+        expectReadFailure(tag, "No Ndef message on tag");
+
+        // A length running past the data area.
+        tag = new SimulatedType2Tag(NTAG213_SIZE);
+        tag.setData(new byte[] { Type2Reader.TLV_NDEF, (byte)0xF0 });
+        expectReadFailure(tag, "Incomplete data on tag");
+    }
+
+    @Test
+    public void tapToResult() throws Exception {
+        Benchmarks.assumeEnabled();
+        long[] nanos = new long[2];
+
+        for (boolean fastRead : new boolean[] { true, false }) {
+            SimulatedType2Tag tag = new SimulatedType2Tag(NTAG215_SIZE);
+            tag.setNdefMessage(msg);
+            tag.setCommandNanos(COMMAND_NANOS);
+
+            Type2Reader reader = new Type2Reader();
+            reader.setFastRead(fastRead);
+
+            long start = System.nanoTime();
+            for (int i = 0; i < TAPS; ++i)
+                new TagManager().parseMessage(reader.read(tag));
+            nanos[fastRead ? 0 : 1] = System.nanoTime() - start;
+        }
+
+        assertTrue("FAST_READ " + nanos[0] + " ns, READ only " + nanos[1], nanos[0] < nanos[1]);
+    }
+
+    // READ commands for len bytes of TLV beyond the 12 data bytes the first READ brings.
+    private static int readCommands(int len) {
+        int rest = Math.max(0, len - (Type2Reader.READ_SIZE - Type2Reader.PAGE_SIZE));
+        return (rest + Type2Reader.READ_SIZE - 1) / Type2Reader.READ_SIZE;
+    }
+
+    private static void expectFailure(byte[] cc, String message) {
+        try {
+            Type2Reader.parseCapabilityContainer(cc, 0);
+            fail("Accepted " + Arrays.toString(cc));
+        } catch(TagManager.TagManagerException e) {
+            assertEquals(message, e.getMessage());
+        }
+    }
+
+    private static void expectReadFailure(SimulatedType2Tag tag, String message) throws Exception {
+        try {
+            new Type2Reader().readBytes(tag);
+            fail("Read went through");
+        } catch(TagManager.TagManagerException e) {
+            assertEquals(message, e.getMessage());
+        }
+    }
+}
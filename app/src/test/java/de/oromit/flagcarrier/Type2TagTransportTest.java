@@ -0,0 +1,141 @@
+package de.oromit.flagcarrier;
+
+import android.nfc.NdefMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Type2TagTransport on a SimulatedType2Tag, and where the lock bits of every chip really are.
+ * Locking must never write to the tag through the raw transport.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class Type2TagTransportTest {
+    private static final byte[] ALL = { (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF };
+
+    private final TagManager tagManager = new TagManager();
+    private NdefMessage msg;
+
+    @Before
+    public void generate() throws Exception {
+        msg = tagManager.generateMessage(Profiles.sample());
+    }
+
+    @After
+    public void close() {
+        tagManager.close();
+    }
+
+    @Test
+    public void writeIsVerified() throws Exception {
+        SimulatedType2Tag tag = new SimulatedType2Tag(496);
+        tagManager.writeToTag(new Type2TagTransport(tag, null), msg);
+
+        assertTrue(tagManager.isLastWriteVerified());
+        assertEquals(tag.getPagesWritten(), tagManager.getLastPagesWritten());
+        assertArrayEquals(msg.toByteArray(), new Type2Reader().readBytes(tag));
+    }
+
+    @Test
+    public void makeReadOnlyLeavesTheLockBitsToNdef() throws Exception {
+        SimulatedType2Tag tag = new SimulatedType2Tag(496);
+        byte[] before = tag.getImage();
+
+        try {
+            tagManager.writeToTag(new TagSession(new Type2TagTransport(tag, null)), msg, true);
+            fail("Tag without Ndef made read-only");
+        } catch(TagManager.TagManagerException e) {
+            assertEquals("Tag was written but can't be made read-only", e.getMessage());
+        }
+
+        // Only the data area changed.
+        byte[] after = tag.getImage();
+        int data = Type2Reader.DATA_PAGE * Type2Reader.PAGE_SIZE;
+        int end = (Type2Reader.DATA_PAGE + 496 / Type2Reader.PAGE_SIZE) * Type2Reader.PAGE_SIZE;
+        assertArrayEquals(Arrays.copyOf(before, data), Arrays.copyOf(after, data));
+        assertArrayEquals(Arrays.copyOfRange(before, end, before.length), Arrays.copyOfRange(after, end, after.length));
+    }
+
+    @Test
+    public void refusedPageFailsTheWrite() throws Exception {
+        for (boolean nakAsResponse : new boolean[] { false, true }) {
+            SimulatedType2Tag tag = new SimulatedType2Tag(496);
+            tag.setNakAsResponse(nakAsResponse);
+            // Locks pages 8 to 15.
+            write(tag, 2, new byte[] { 0, 0, 0, (byte)0xFF });
+            int before = tag.getPagesWritten();
+
+            Type2Writer writer = new Type2Writer();
+            try {
+                writer.write(tag, msg.toByteArray());
+                fail("Write to locked pages went through");
+            } catch(IOException e) {
+                if (nakAsResponse)
+                    assertEquals("Tag refused to write page 8", e.getMessage());
+            }
+
+            // The TLV length page and pages 5 to 7 made it, the refused one doesn't count.
+            assertEquals(tag.getPagesWritten() - before, writer.getLastPagesWritten());
+            assertEquals(4, writer.getLastPagesWritten());
+        }
+    }
+
+    @Test
+    public void lockBitsCoverTheUserMemory() throws Exception {
+        for (SimulatedType2Tag.Chip chip : SimulatedType2Tag.CHIPS) {
+            SimulatedType2Tag tag = new SimulatedType2Tag(chip.dataSize);
+            int last = Type2Reader.DATA_PAGE + chip.memorySize / Type2Reader.PAGE_SIZE - 1;
+
+            write(tag, 2, ALL);
+            if (chip.lockPage != 0)
+                write(tag, chip.lockPage, new byte[] { (byte)0xFF, (byte)0xFF, (byte)0xFF, 0 });
+
+            for (int page = Type2Reader.CC_PAGE; page <= last; ++page)
+                assertTrue(chip.name + " page " + page, tag.isPageLocked(page));
+
+            try {
+                write(tag, last, ALL);
+                fail(chip.name + " took a write to a locked page");
+            } catch(IOException e) {
+                tag.reconnect();
+            }
+        }
+    }
+
+    @Test
+    public void lockPageFromTheCcSizeIsUserMemory() throws Exception {
+        for (SimulatedType2Tag.Chip chip : SimulatedType2Tag.CHIPS) {
+            if (chip.memorySize == chip.dataSize)
+                continue;
+
+            // Where the dynamic lock bits would be if the CC size was the whole user memory.
+            SimulatedType2Tag tag = new SimulatedType2Tag(chip.dataSize);
+            int guess = Type2Reader.DATA_PAGE + chip.dataSize / Type2Reader.PAGE_SIZE;
+            write(tag, 2, ALL);
+            write(tag, guess, new byte[] { (byte)0xFF, (byte)0xFF, (byte)0xFF, 0 });
+
+            assertFalse(chip.name, tag.isPageLocked(Type2Reader.DATA_PAGE + 16));
+            assertFalse(chip.name, tag.isPageLocked(guess));
+        }
+    }
+
+    private static void write(SimulatedType2Tag tag, int page, byte[] b) throws IOException {
+        byte[] cmd = new byte[2 + Type2Reader.PAGE_SIZE];
+        cmd[0] = Type2Writer.CMD_WRITE;
+        cmd[1] = (byte)page;
+        System.arraycopy(b, 0, cmd, 2, Type2Reader.PAGE_SIZE);
+        tag.transceive(cmd);
+    }
+}
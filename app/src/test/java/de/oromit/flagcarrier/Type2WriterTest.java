@@ -0,0 +1,130 @@
+package de.oromit.flagcarrier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Type2Writer on a SimulatedType2Tag: only pages that differ get written, and a tag pulled
+ * away after any page holds the old message, the new one or nothing.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class Type2WriterTest {
+    private static final int NTAG215_SIZE = 496;
+
+    private final TagManager tagManager = new TagManager();
+    private byte[] first;
+    private byte[] second;
+
+    @Before
+    public void generate() throws Exception {
+        Map<String, String> data = Profiles.sample();
+        first = tagManager.generateMessage(data).toByteArray();
+        data.put("display_name", "TheOtherRunner");
+        second = tagManager.generateMessage(data).toByteArray();
+    }
+
+    @After
+    public void close() {
+        tagManager.close();
+    }
+
+    @Test
+    public void writeAndReadBack() throws Exception {
+        SimulatedType2Tag tag = new SimulatedType2Tag(NTAG215_SIZE);
+        Type2Writer writer = new Type2Writer();
+
+        assertTrue(writer.write(tag, first));
+        assertEquals(tag.getPagesWritten(), writer.getLastPagesWritten());
+        assertArrayEquals(first, new Type2Reader().readBytes(tag));
+    }
+
+    @Test
+    public void sameMessageWritesNothing() throws Exception {
+        SimulatedType2Tag tag = new SimulatedType2Tag(NTAG215_SIZE);
+        Type2Writer writer = new Type2Writer();
+        writer.write(tag, first);
+
+        assertTrue(writer.write(tag, first));
+        assertEquals(0, writer.getLastPagesWritten());
+        assertTrue(writer.getLastPagesTotal() > 0);
+    }
+
+    @Test
+    public void tornWrites() throws Exception {
+        SimulatedType2Tag tag = new SimulatedType2Tag(NTAG215_SIZE);
+        Type2Writer writer = new Type2Writer();
+        writer.write(tag, first);
+        writer.write(tag, second);
+        int writes = writer.getLastPagesWritten();
+        assertTrue(writes > 1);
+
+        for (int cut = 0; cut < writes; ++cut) {
+            tag = new SimulatedType2Tag(NTAG215_SIZE);
+            writer.write(tag, first);
+
+            try {
+                writer.write(new CutTransport(tag, cut), second);
+                fail("Write went through after " + cut + " pages");
+            } catch(IOException expected) {
+            }
+
+            try {
+                byte[] b = new Type2Reader().readBytes(tag);
+                assertTrue("Torn message after " + cut + " pages",
+                        Arrays.equals(first, b) || Arrays.equals(second, b));
+            } catch(TagManager.TagManagerException e) {
+                assertEquals("Tag is empty", e.getMessage());
+            }
+        }
+    }
+
+    // Loses the tag instead of sending the WRITE after the given number of pages.
+    private static class CutTransport implements Type2Reader.Transport {
+        private final SimulatedType2Tag tag;
+        private int writesLeft;
+
+        CutTransport(SimulatedType2Tag tag, int writes) {
+            this.tag = tag;
+            this.writesLeft = writes;
+        }
+
+        @Override
+        public void connect() {
+            tag.connect();
+        }
+
+        @Override
+        public byte[] transceive(byte[] cmd) throws IOException {
+            if (cmd[0] == Type2Writer.CMD_WRITE && writesLeft-- == 0)
+                throw new IOException("Tag was lost");
+            return tag.transceive(cmd);
+        }
+
+        @Override
+        public int getMaxTransceiveLength() {
+            return tag.getMaxTransceiveLength();
+        }
+
+        @Override
+        public void reconnect() {
+            tag.reconnect();
+        }
+
+        @Override
+        public void close() {
+            tag.close();
+        }
+    }
+}